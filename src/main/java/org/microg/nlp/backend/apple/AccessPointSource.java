@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2013-2018 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.backend.apple;
+
+import android.location.Location;
+
+/**
+ * A source of access point locations, one tier of a {@link TieredLookup}.
+ */
+public interface AccessPointSource {
+    String getName();
+
+    /**
+     * @return true if lookups might block on I/O, these are skipped when time is short
+     */
+    boolean isSlow();
+
+    /**
+     * @return the location of the access point, with its MAC address in the extras, or null if
+     * unknown to this source. The extras of the returned location may be modified by the caller.
+     */
+    Location get(String mac);
+}
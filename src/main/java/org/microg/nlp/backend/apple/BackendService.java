@@ -16,16 +16,33 @@
 
 package org.microg.nlp.backend.apple;
 
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.location.Location;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.os.Bundle;
+import android.os.Debug;
 import android.util.Log;
 
 import org.microg.nlp.api.HelperLocationBackendService;
-import org.microg.nlp.api.LocationHelper;
 import org.microg.nlp.api.WiFiBackendHelper;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import static org.microg.nlp.api.WiFiBackendHelper.WiFi;
@@ -35,60 +52,205 @@ public class BackendService extends HelperLocationBackendService
 
     private static final String TAG = "AppleNlpBackendService";
     private static final long THIRTY_DAYS = 2592000000L;
-    private final LocationRetriever retriever = new LocationRetriever();
+    /**
+     * Time budget for database lookups before the first fix of a scan is reported. Access points
+     * not looked up in time are resolved right after and reported as refined fix.
+     */
+    private static final long PHASE_ONE_DEADLINE = 30 * 1000 * 1000;
+    /**
+     * A refined fix is only reported if its accuracy is better by this factor.
+     */
+    private static final float REFINE_FACTOR = 0.8F;
+    /**
+     * Only the strongest access points of a scan are used at first, weak ones barely change the
+     * result. More are added if these don't form a verified cluster.
+     */
+    private static final int DEFAULT_TOP_K = 24;
+    /**
+     * Every this many scans that stopped at the strongest access points, the fix is also
+     * calculated from all access points known in memory, to measure what stopping early costs.
+     */
+    private static final int BOUNDED_SAMPLE_INTERVAL = 16;
+    private static final int TRACE_SIZE = 256;
+    private static final int FINGERPRINT_CAPACITY = 2048;
+    private static final String FINGERPRINT_FILE = "fingerprints.bin";
+    private static final String OFFLINE_PACK_FILE = "offline.pack";
+    private static final String OFFLINE_CSV_FILE = "offline.csv";
+    /**
+     * Fixes are learned as fingerprint if based on at least this many located access points.
+     * Scans with fewer also query the fingerprints.
+     */
+    private static final int MIN_LEARN_LOCATIONS = 3;
+    /**
+     * A fix taking more CPU time than this is reported as anomaly.
+     */
+    private static final long SLOW_FIX = 100 * 1000 * 1000;
+    private final BatchPolicy batchPolicy = new BatchPolicy();
+    private final ScanProcessor scanProcessor = new ScanProcessor(new ScanProcessor.Processor() {
+        @Override
+        public void process(Set<WiFi> wiFis) {
+            if (!isConnected()) return;
+            coordinator.getMemoryBudget().maybeRecover();
+            SharedHandle<Resources> handle = acquire();
+            if (handle == null) return;
+            try {
+                report(calculate(handle.get(), wiFis));
+                ScanState scan = currentScan;
+                if (scan != null) lookupDeferred(handle.get(), scan);
+            } finally {
+                handle.release();
+            }
+        }
+    });
+    private final RetrievalCoordinator.Listener foldListener = new RetrievalCoordinator.Listener() {
+        @Override
+        public void onLocationsRetrieved(List<Location> locations) {
+            // Called while the response is still arriving, so use it right away, but recalculate
+            // once per chunk instead of once per location
+            ScanState scan = null;
+            for (Location location : locations) {
+                ScanState folded = foldIn(location);
+                if (folded != null) scan = folded;
+            }
+            if (scan != null) refine(scan);
+        }
+    };
+    private static final SharedHandle.Closer<Resources> CLOSE_RESOURCES = new SharedHandle.Closer<Resources>() {
+        @Override
+        public void close(Resources resources) {
+            resources.prefetcher.close();
+            resources.trajectoryPrefetcher.close();
+            resources.regionPackBuilder.stop();
+            // The database is shared with other components through the coordinator, don't close it
+            resources.database.saveSnapshot();
+            Log.d(TAG, "Resources closed");
+        }
+    };
+    private RetrievalCoordinator coordinator;
     private WiFiBackendHelper backendHelper;
-    private VerifyingWifiLocationCalculator calculator;
-    private WifiLocationDatabase database;
-    private Thread thread;
+    private volatile SharedHandle<Resources> resources;
+    private volatile Thread thread;
     private Set<String> toRetrieve;
+    private volatile ScanState currentScan;
+    private long refinedCount;
+    private final LatencyHistogram fixCpuTime = new LatencyHistogram();
+    private final TraceBuffer trace = new TraceBuffer(TRACE_SIZE);
+    private final TieredLookup lookup = new TieredLookup();
+    private final ShadowRunner shadow = new ShadowRunner();
+    private final OfflineDataset offlineDataset = new OfflineDataset();
+    private final FingerprintIndex fingerprints = new FingerprintIndex(FINGERPRINT_CAPACITY);
+    private boolean localDataLoaded;
+    /**
+     * Set once the stored fingerprints were read, saving before would overwrite them.
+     */
+    private volatile boolean fingerprintsLoaded;
+    private long fingerprintFixCount;
+    private int topK = DEFAULT_TOP_K;
+    private long widenedCount;
+    private long skippedCount;
+    private long savedCpuTime;
+    private long boundedScanCount;
+    private long boundedSampleCount;
+    private double boundedErrorSum;
+    private float boundedMaxError;
+    private long excludedCount;
+    private boolean queueRestored;
+    /**
+     * Number of MAC addresses kept in {@link #toRetrieve}, given by the {@link MemoryBudget}.
+     * The rest only stays in the database queue.
+     */
+    private int queueCapacity = Integer.MAX_VALUE;
+    private final MemoryBudget.Tier queueTier = new MemoryBudget.Tier() {
+        @Override
+        public int size() {
+            synchronized (BackendService.this) {
+                return toRetrieve == null ? 0 : toRetrieve.size();
+            }
+        }
+
+        @Override
+        public void setCapacity(int capacity) {
+            setQueueCapacity(capacity);
+        }
+    };
     private final Runnable retrieveAction = new Runnable() {
         @Override
         public void run() {
-            while (toRetrieve != null && !toRetrieve.isEmpty()) {
-                if (isConnected()) {
-                    Set<String> now = new HashSet<>();
-                    for (String s : toRetrieve) {
-                        now.add(s);
-                        if (now.size() == 10) break;
+            restoreQueue();
+            while (true) {
+                RateController rateController = coordinator.getRateController();
+                List<String> now = null;
+                synchronized (BackendService.this) {
+                    if (toRetrieve == null || toRetrieve.isEmpty()) {
+                        // Checked and released in one step, so retrieveLater starts a new thread if needed
+                        releaseThread();
+                        return;
                     }
+                    if (isConnected() && isNetworkAvailable()) {
+                        now = batchPolicy.nextBatch(toRetrieve, rateController);
+                    }
+                }
+                if (now != null) {
                     Log.d(TAG, "Requesting Apple for " + now.size() + " locations");
+                    Set<String> done = new HashSet<>(now);
+                    List<String> unresolved = new ArrayList<>();
                     try {
-                        Collection<Location> response = retriever.retrieveLocations(now);
-                        WifiLocationDatabase.Editor editor = database.edit();
+                        // A fix is waiting for these, so slow requests are hedged
+                        Collection<Location> response = coordinator.retrieve(now, foldListener,
+                                unresolved, true);
+                        batchPolicy.onSuccess(now, response);
                         for (Location location : response) {
-                            editor.put(location);
-                            toRetrieve.remove(location.getExtras().getString(LocationRetriever
+                            done.add(location.getExtras().getString(LocationRetriever
                                     .EXTRA_MAC_ADDRESS));
                         }
-                        for (String mac : now) {
-                            if (toRetrieve.contains(mac)) {
-                                Bundle extras = new Bundle();
-                                extras.putString(LocationRetriever.EXTRA_MAC_ADDRESS, mac);
-                                editor.put(LocationHelper.create("unknown",
-                                        System.currentTimeMillis(), extras));
-                                toRetrieve.remove(mac);
-                            }
-                        }
-                        editor.end();
-                        // Forcing update, because new mapping data is available
-                        report(calculate(backendHelper.getWiFis()));
+                        // In flight for another caller that failed, keep them queued
+                        done.removeAll(unresolved);
+                        // Unknown MACs have been stored as such by the coordinator
+                        removeQueued(done);
+                        // New mapping data is available, refine the current fix if it changed
+                        ScanState scan = currentScan;
+                        if (scan != null && scan.changed) refine(scan);
                     } catch (Exception e) {
                         Log.w(TAG, e);
+                        Collection<String> poisoned = batchPolicy.onFailure(now, e);
+                        if (!poisoned.isEmpty()) {
+                            coordinator.storeUnknown(poisoned);
+                            removeQueued(poisoned);
+                        }
                     }
                 }
                 Thread t = thread;
-                if (t == null) break;
+                // Stopped by onClose, maybe replaced by a new thread of onOpen
+                if (t != Thread.currentThread()) break;
                 //noinspection SynchronizationOnLocalVariableOrMethodParameter
                 synchronized (t) {
                     try {
-                        t.wait(30000);
+                        if (!isConnected()) {
+                            t.wait(30000);
+                        } else if (!isNetworkAvailable()) {
+                            // Woken up by connectivityReceiver
+                            t.wait();
+                        } else {
+                            t.wait(Math.max(rateController.getDelay(), 1));
+                        }
                     } catch (InterruptedException e) {
                         break;
                     }
                 }
             }
-            toRetrieve = null;
-            thread = null;
+            releaseThread();
+        }
+    };
+    private final BroadcastReceiver connectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Thread t = thread;
+            if (t != null && isNetworkAvailable()) {
+                //noinspection SynchronizationOnLocalVariableOrMethodParameter
+                synchronized (t) {
+                    t.notifyAll();
+                }
+            }
         }
     };
 
@@ -96,68 +258,585 @@ public class BackendService extends HelperLocationBackendService
     public void onCreate() {
         super.onCreate();
         addHelper(backendHelper = new WiFiBackendHelper(this, this));
+        coordinator = RetrievalCoordinator.getInstance(this);
+        final WifiLocationDatabase database = coordinator.getDatabase();
+        lookup.addTier(new AccessPointSource() {
+            @Override
+            public String getName() {
+                return "memory";
+            }
+
+            @Override
+            public boolean isSlow() {
+                return false;
+            }
+
+            @Override
+            public Location get(String mac) {
+                Location location = database.getCached(mac);
+                // Unknown to Apple, a later tier might know it
+                return location == null || isUnknown(location) ? null : location;
+            }
+        }).addTier(new AccessPointSource() {
+            @Override
+            public String getName() {
+                return "sqlite";
+            }
+
+            @Override
+            public boolean isSlow() {
+                return true;
+            }
+
+            @Override
+            public Location get(String mac) {
+                Location location = database.getStored(mac);
+                return location == null || isUnknown(location) ? null : location;
+            }
+        }).addTier(offlineDataset);
+        shadow.addCandidate("centroid", new WeightedCentroidCalculator("apple"));
+        coordinator.getMemoryBudget().register("queue", queueTier, 0.1F, 128,
+                LocationRetriever.MAX_MACS_PER_REQUEST, 16384);
+    }
+
+    @Override
+    public void onDestroy() {
+        // The budget belongs to the process, it must not keep this instance alive
+        coordinator.getMemoryBudget().unregister(queueTier);
+        super.onDestroy();
     }
 
-    private synchronized Location calculate(Set<WiFi> wiFis) {
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        coordinator.getMemoryBudget().onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        coordinator.getMemoryBudget().onLowMemory();
+    }
+
+    /**
+     * @return a reference to the resources, to be released after use, or null if closed
+     */
+    private SharedHandle<Resources> acquire() {
+        SharedHandle<Resources> handle = resources;
+        return handle != null && handle.acquire() ? handle : null;
+    }
+
+    private Location calculate(Resources resources, Set<WiFi> wiFis) {
         if (!isConnected()) {
             return null;
         }
-        Set<Location> locations = new HashSet<>();
+        long cpuStart = Debug.threadCpuTimeNanos();
+        ScanState scan = new ScanState();
         Set<String> unknown = new HashSet<>();
+        // Until the database is opened, only use the in-memory tier and don't request anything
+        boolean ready = resources.database.isReady();
+        long deadline = System.nanoTime() + PHASE_ONE_DEADLINE;
+        // Moving access points are neither looked up nor requested, and don't count as part of the scan
+        ReliabilityIndex reliability = resources.database.getReliability();
+        WiFi[] ranked = new WiFi[wiFis.size()];
+        int count = 0;
         for (WiFi wifi : wiFis) {
-            Location location = database.get(wifi.getBssid());
-            if (location != null) {
-                if ((location.getTime() + THIRTY_DAYS) < System.currentTimeMillis()) {
-                    // Location is old, let's refresh it :)
-                    unknown.add(wifi.getBssid());
-                }
-                location.getExtras().putInt(LocationRetriever.EXTRA_SIGNAL_LEVEL, wifi.getRssi());
-                if (location.hasAccuracy() && location.getAccuracy() != -1) {
-                    locations.add(location);
+            if (reliability.isUnreliable(wifi.getBssid())) {
+                excludedCount++;
+                continue;
+            }
+            ranked[count++] = wifi;
+            scan.signalLevels.put(wifi.getBssid(), wifi.getRssi());
+        }
+        if (count < ranked.length) ranked = Arrays.copyOf(ranked, count);
+        trace.beginScan(ranked.length);
+        int limit = topK > 0 ? Math.min(topK, ranked.length) : ranked.length;
+        StrongestSelector.select(ranked, 0, limit);
+        int done = 0;
+        VerifyingWifiLocationCalculator.Result result;
+        while (true) {
+            for (int i = done; i < limit; i++) {
+                String bssid = ranked[i].getBssid();
+                boolean inTime = ready && System.nanoTime() < deadline;
+                Location location = lookup.get(bssid, inTime);
+                if (location != null) {
+                    add(scan, location, unknown);
+                } else if (ready && !inTime) {
+                    scan.deferred.add(bssid);
+                } else if (ready) {
+                    onMiss(resources.database, bssid, unknown);
                 }
-            } else {
-                unknown.add(wifi.getBssid());
             }
+            done = limit;
+            result = resources.calculator.evaluate(new HashSet<>(scan.locations.values()));
+            if (result.isVerified() || limit == ranked.length) break;
+            // No verified cluster among the strongest, widen the selection
+            limit = Math.min(limit * 2, ranked.length);
+            StrongestSelector.select(ranked, done, limit);
+            widenedCount++;
         }
-        Log.d(TAG, "Found " + wiFis.size() + " wifis, of whom " + locations.size() + " with " +
-                "location and " + unknown.size() + " unknown.");
-        if (!unknown.isEmpty()) {
+        // Only the final selection is written to the database, access points are rated once the
+        // scan is over
+        resources.calculator.commit(result);
+        scan.result = result;
+        scan.reported = result.getLocation();
+        scan.wiFis = ranked;
+        Location located = scan.reported;
+        shadow.submit(scan.locations.values(), located);
+        if (located != null && scan.locations.size() >= MIN_LEARN_LOCATIONS) {
+            fingerprints.learn(ranked, located);
+        } else if (scan.locations.size() < MIN_LEARN_LOCATIONS) {
+            // Coverage is thin, similar scans seen before might know better
+            Location fingerprint = fingerprints.query(ranked, "apple");
+            if (fingerprint != null && (located == null || fingerprint.getAccuracy() < located.getAccuracy())) {
+                scan.reported = fingerprint;
+                fingerprintFixCount++;
+            }
+        }
+        trace.record(TraceBuffer.LOOKUP, scan.locations.size(), unknown.size(), ranked.length - done);
+        retrieveLater(resources.database, unknown);
+        ScanState previous = currentScan;
+        currentScan = scan;
+        if (previous != null) rate(resources, previous);
+        long cpuTime = Debug.threadCpuTimeNanos() - cpuStart;
+        fixCpuTime.record(cpuTime);
+        if (done > 0 && done < ranked.length) {
+            skippedCount += ranked.length - done;
+            // Estimate by the average cost of the access points that were processed
+            savedCpuTime += cpuTime * (ranked.length - done) / done;
+            if (located != null && boundedScanCount++ % BOUNDED_SAMPLE_INTERVAL == 0) {
+                sampleBoundedError(resources, scan, ranked, done, located);
+            }
+        }
+        if (scan.reported != null) {
+            trace.record(TraceBuffer.FIX, 0, 0, scan.reported.getAccuracy());
+        } else {
+            trace.record(TraceBuffer.NO_FIX, scan.locations.size(), 0, 0);
+        }
+        if (located == null && scan.locations.size() >= 3) {
+            trace.onAnomaly("no fix from located access points");
+        }
+        if (cpuTime > SLOW_FIX) trace.onAnomaly("slow fix");
+        onFix(resources, scan.reported);
+        return scan.reported;
+    }
+
+    /**
+     * Compare the fix from the strongest access points to the one from all of them that are
+     * known in memory, without side effects.
+     */
+    private void sampleBoundedError(Resources resources, ScanState scan, WiFi[] ranked, int done,
+                                    Location located) {
+        Set<Location> all = new HashSet<>(scan.locations.values());
+        for (int i = done; i < ranked.length; i++) {
+            Location location = lookup.get(ranked[i].getBssid(), false);
+            if (location == null || !location.hasAccuracy() || location.getAccuracy() < 0) continue;
+            location.getExtras().putInt(LocationRetriever.EXTRA_SIGNAL_LEVEL, ranked[i].getRssi());
+            all.add(location);
+        }
+        Location full = resources.calculator.evaluate(all).getLocation();
+        if (full == null) return;
+        float error = full.distanceTo(located);
+        boundedSampleCount++;
+        boundedErrorSum += error;
+        boundedMaxError = Math.max(boundedMaxError, error);
+    }
+
+    private void add(ScanState scan, Location location, Set<String> unknown) {
+        String mac = location.getExtras().getString(LocationRetriever.EXTRA_MAC_ADDRESS);
+        if ((location.getTime() + THIRTY_DAYS) < System.currentTimeMillis()) {
+            // Location is old, let's refresh it :)
+            unknown.add(mac);
+        }
+        location.getExtras().putInt(LocationRetriever.EXTRA_SIGNAL_LEVEL, scan.signalLevels.get(mac));
+        if (!isUnknown(location)) {
+            scan.locations.put(mac, location);
+        }
+    }
+
+    /**
+     * @return whether the location is the marker stored for access points unknown to Apple
+     */
+    private static boolean isUnknown(Location location) {
+        return !location.hasAccuracy() || location.getAccuracy() == -1;
+    }
+
+    /**
+     * Queue an access point missed by all tiers for retrieval, unless Apple recently reported it
+     * as unknown. The lookup stored such a marker in memory on the way.
+     */
+    private static void onMiss(WifiLocationDatabase database, String mac, Set<String> unknown) {
+        Location marker = database.getCached(mac);
+        if (marker == null || marker.getTime() + THIRTY_DAYS < System.currentTimeMillis()) {
+            unknown.add(mac);
+        }
+    }
+
+    private boolean isNetworkAvailable() {
+        ConnectivityManager cm = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
+        NetworkInfo info = cm.getActiveNetworkInfo();
+        return info != null && info.isConnected();
+    }
+
+    /**
+     * Add the MAC addresses persisted by a previous instance to the retrieval queue, once.
+     */
+    private void restoreQueue() {
+        Set<String> queued;
+        int queueCapacity;
+        synchronized (this) {
+            if (queueRestored || resources == null) return;
+            queueRestored = true;
+            queueCapacity = this.queueCapacity;
+        }
+        try {
+            queued = coordinator.getDatabase().getQueued(queueCapacity);
+        } catch (RuntimeException e) {
+            Log.w(TAG, e);
+            return;
+        }
+        if (queued.isEmpty()) return;
+        Log.d(TAG, "Restored " + queued.size() + " queued locations");
+        synchronized (this) {
             if (toRetrieve == null) {
-                toRetrieve = unknown;
+                toRetrieve = queued;
             } else {
-                toRetrieve.addAll(unknown);
+                toRetrieve.addAll(queued);
+            }
+            trimQueue();
+        }
+    }
+
+    private void retrieveLater(WifiLocationDatabase database, Set<String> unknown) {
+        if (!unknown.isEmpty()) {
+            lookup.onQueued(unknown.size());
+            database.enqueue(unknown);
+            batchPolicy.onScan(unknown);
+        }
+        synchronized (this) {
+            if (!unknown.isEmpty()) {
+                if (toRetrieve == null) {
+                    toRetrieve = unknown;
+                } else {
+                    toRetrieve.addAll(unknown);
+                }
+                trimQueue();
+            }
+            if (thread == null) {
+                thread = new Thread(retrieveAction);
+                thread.start();
+            }
+        }
+    }
+
+    private synchronized void setQueueCapacity(int capacity) {
+        queueCapacity = capacity;
+        trimQueue();
+    }
+
+    /**
+     * Drop the MAC addresses beyond the capacity from memory. They stay in the database queue and
+     * are restored when the retrieval thread starts the next time.
+     */
+    private void trimQueue() {
+        if (toRetrieve == null || toRetrieve.size() <= queueCapacity) return;
+        Iterator<String> iterator = toRetrieve.iterator();
+        for (int i = 0; i < queueCapacity && iterator.hasNext(); i++) {
+            iterator.next();
+        }
+        while (iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+        queueRestored = false;
+    }
+
+    private synchronized void removeQueued(Collection<String> macs) {
+        if (toRetrieve != null) toRetrieve.removeAll(macs);
+        coordinator.getDatabase().dequeue(macs);
+    }
+
+    /**
+     * Called by the retrieval thread when it ends.
+     */
+    private synchronized void releaseThread() {
+        if (thread == Thread.currentThread()) {
+            toRetrieve = null;
+            thread = null;
+        }
+    }
+
+    /**
+     * Second phase for local data: look up the access points skipped because of the deadline.
+     */
+    private void lookupDeferred(Resources resources, ScanState scan) {
+        Set<String> unknown = new HashSet<>();
+        synchronized (scan) {
+            if (scan != currentScan || scan.deferred.isEmpty()) return;
+            for (String mac : scan.deferred) {
+                Location location = lookup.get(mac, true);
+                if (location != null) {
+                    add(scan, location, unknown);
+                } else {
+                    onMiss(resources.database, mac, unknown);
+                }
+            }
+            scan.deferred.clear();
+        }
+        retrieveLater(resources.database, unknown);
+        refine(resources, scan);
+    }
+
+    /**
+     * Second phase for network data: add a retrieved location to the current scan, if it is part
+     * of it. The fix is only recalculated by {@link #refine(ScanState)}.
+     *
+     * @return the scan the location was added to, or null if it is not part of the current scan
+     */
+    private ScanState foldIn(Location location) {
+        ScanState scan = currentScan;
+        if (scan == null) return null;
+        String mac = location.getExtras().getString(LocationRetriever.EXTRA_MAC_ADDRESS);
+        if (!scan.signalLevels.containsKey(mac)) return null;
+        Location copy = new Location(location);
+        copy.setExtras(new Bundle(location.getExtras()));
+        synchronized (scan) {
+            add(scan, copy, new HashSet<String>());
+            scan.changed = true;
+        }
+        return scan;
+    }
+
+    /**
+     * Recalculate the fix of the given scan from the locations found so far, and report it if it
+     * is meaningfully more accurate than the one reported before.
+     */
+    private void refine(ScanState scan) {
+        SharedHandle<Resources> handle = acquire();
+        if (handle == null) return;
+        try {
+            refine(handle.get(), scan);
+        } finally {
+            handle.release();
+        }
+    }
+
+    private void refine(Resources resources, ScanState scan) {
+        synchronized (scan) {
+            if (scan != currentScan || !isConnected()) return;
+            scan.changed = false;
+            VerifyingWifiLocationCalculator.Result result =
+                    resources.calculator.evaluate(new HashSet<>(scan.locations.values()));
+            scan.result = result;
+            Location refined = result.getLocation();
+            if (refined == null) return;
+            if (scan.reported == null || refined.getAccuracy() < scan.reported.getAccuracy() * REFINE_FACTOR) {
+                // Only a fix that is reported is persisted, not every intermediate one
+                resources.calculator.commit(result);
+                trace.record(TraceBuffer.FIX, 1, 0, refined.getAccuracy());
+                scan.reported = refined;
+                refinedCount++;
+                if (scan.locations.size() >= MIN_LEARN_LOCATIONS) fingerprints.learn(scan.wiFis, refined);
+                onFix(resources, refined);
+                report(refined);
             }
         }
-        if (thread == null) {
-            thread = new Thread(retrieveAction);
-            thread.start();
+    }
+
+    /**
+     * Rate the access points by the final result of a scan that is no longer current. Earlier
+     * results are based on fewer access points, so a scan only rates once.
+     */
+    private void rate(Resources resources, ScanState scan) {
+        VerifyingWifiLocationCalculator.Result result;
+        synchronized (scan) {
+            result = scan.result;
+            scan.result = null;
+        }
+        if (result != null) resources.calculator.rate(result);
+    }
+
+    private void onFix(Resources resources, Location location) {
+        if (location != null) {
+            resources.prefetcher.onFix(location);
+            resources.trajectoryPrefetcher.onFix(location);
+            resources.regionPackBuilder.onFix(location);
         }
-        return calculator.calculate(locations);
     }
 
     @Override
-    protected synchronized void onOpen() {
+    protected void onOpen() {
         Log.d(TAG, "onOpen");
         super.onOpen();
-        database = new WifiLocationDatabase(this);
-        calculator = new VerifyingWifiLocationCalculator("apple", database);
+        WifiLocationDatabase database = coordinator.getDatabase();
+        VerifyingWifiLocationCalculator calculator = new VerifyingWifiLocationCalculator("apple", database);
+        calculator.setTrace(trace);
+        resources = new SharedHandle<>(new Resources(database, calculator, new TilePrefetcher(database),
+                new TrajectoryPrefetcher(database, coordinator),
+                new RegionPackBuilder(this, database, coordinator)), CLOSE_RESOURCES);
+        scanProcessor.start();
+        resources.get().regionPackBuilder.start();
+        registerReceiver(connectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        synchronized (this) {
+            queueRestored = false;
+        }
+        retrieveLater(database, Collections.<String>emptySet());
+        if (!localDataLoaded) {
+            localDataLoaded = true;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Log.d(TAG, "Loaded " + fingerprints.read(getFingerprintFile()) + " fingerprints");
+                    } catch (IOException e) {
+                        Log.w(TAG, e);
+                    } finally {
+                        fingerprintsLoaded = true;
+                    }
+                    try {
+                        Log.d(TAG, "Opened offline dataset of " + offlineDataset.open(
+                                new File(getFilesDir(), OFFLINE_PACK_FILE),
+                                new File(getFilesDir(), OFFLINE_CSV_FILE)) + " access points");
+                    } catch (IOException e) {
+                        Log.w(TAG, e);
+                    }
+                }
+            }, "AppleNlpLocalData").start();
+        }
+    }
+
+    private File getFingerprintFile() {
+        return new File(getFilesDir(), FINGERPRINT_FILE);
     }
 
     @Override
-    protected synchronized void onClose() {
+    protected void onClose() {
         Log.d(TAG, "onClose");
         super.onClose();
-        calculator = null;
-        database.close();
-        if (thread != null) {
-            thread.interrupt();
-            thread = null;
+        unregisterReceiver(connectivityReceiver);
+        scanProcessor.stop();
+        ScanState scan = currentScan;
+        currentScan = null;
+        SharedHandle<Resources> handle = resources;
+        if (scan != null && handle != null) rate(handle.get(), scan);
+        resources = null;
+        // Calculations still running keep their reference, the resources are closed once they are done
+        if (handle != null) handle.close();
+        if (fingerprintsLoaded) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        fingerprints.write(getFingerprintFile());
+                    } catch (IOException e) {
+                        Log.w(TAG, e);
+                    }
+                }
+            }, "AppleNlpFingerprints").start();
+        } else {
+            Log.d(TAG, "Fingerprints not loaded yet, not saving");
+        }
+        synchronized (this) {
+            if (thread != null) {
+                thread.interrupt();
+                thread = null;
+            }
         }
-        database = null;
     }
 
     @Override
     public void onWiFisChanged(Set<WiFi> wiFis) {
-        if (isConnected()) report(calculate(wiFis));
+        if (isConnected()) scanProcessor.submit(wiFis);
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("Retrieval: requested=" + coordinator.getRequestedCount() +
+                " suppressed=" + coordinator.getSuppressedCount() +
+                " networkRequests=" + coordinator.getNetworkRequestCount() +
+                " inFlight=" + coordinator.getInFlightCount());
+        writer.println("Scans: submitted=" + scanProcessor.getSubmittedCount() +
+                " coalesced=" + scanProcessor.getCoalescedCount());
+        writer.println("Refined fixes: " + refinedCount);
+        writer.println("Bounded work: topK=" + topK + " widened=" + widenedCount +
+                " skipped=" + skippedCount + " extrapolatedCpuSaved=" + savedCpuTime / 1000000 + "ms" +
+                " sampled=" + boundedSampleCount + " meanError=" +
+                (boundedSampleCount == 0 ? 0 : Math.round(boundedErrorSum / boundedSampleCount)) +
+                "m maxError=" + Math.round(boundedMaxError) + "m");
+        writer.println("Fix CPU time: " + fixCpuTime);
+        writer.println("Lookup tiers:\n  " + lookup);
+        writer.println("Shadow calculators: " + shadow);
+        writer.println("Reliability: " + coordinator.getDatabase().getReliability() +
+                " excluded=" + excludedCount);
+        writer.println("Fingerprints: " + fingerprints + " fixes=" + fingerprintFixCount);
+        writer.println("Scan queue time: " + scanProcessor.getQueueTime());
+        writer.println("Scan processing time: " + scanProcessor.getProcessingTime());
+        writer.println("Rate control: " + coordinator.getRateController());
+        LocationRetriever retriever = coordinator.getRetriever();
+        writer.println("Hedging: requests=" + retriever.getRequestCount() +
+                " hedged=" + retriever.getHedgeCount() + " won=" + retriever.getHedgeWinCount());
+        writer.println("Batches: " + batchPolicy);
+        writer.println("Last ingest: " + coordinator.getLastIngest() + ", waited " +
+                coordinator.getLastBlockedMillis() + "ms for writer");
+        writer.println("Database reads: " + coordinator.getDatabase().getReadLatency());
+        writer.println("Cached locations: " + coordinator.getDatabase().getCache().size());
+        writer.println("Memory: " + coordinator.getMemoryBudget());
+        SharedHandle<Resources> handle = acquire();
+        if (handle != null) {
+            try {
+                Resources resources = handle.get();
+                writer.println("Prefetch: tiles=" + resources.prefetcher.getLoadedTileCount() +
+                        " loaded=" + resources.prefetcher.getLoadedCount() +
+                        " evicted=" + resources.prefetcher.getEvictedCount() +
+                        " unused=" + resources.database.getCache().getPrefetchedCount());
+                writer.println("Trajectory prefetch: seeds=" + resources.trajectoryPrefetcher.getSeedCount() +
+                        " remainingBudget=" + resources.trajectoryPrefetcher.getRemainingBudget());
+                writer.println("Region pack: " + resources.regionPackBuilder.getStatus());
+                // Without this dump and the owner
+                writer.println("Resources in use: " + (handle.getReferenceCount() - 2));
+            } finally {
+                handle.release();
+            }
+        }
+        trace.dump(writer);
+    }
+
+    /**
+     * Resources used while the service is open. Shared by the scan and retrieval threads through a
+     * {@link SharedHandle}, so onClose doesn't pull them away from a running calculation.
+     */
+    private static class Resources {
+        private final WifiLocationDatabase database;
+        private final VerifyingWifiLocationCalculator calculator;
+        private final TilePrefetcher prefetcher;
+        private final TrajectoryPrefetcher trajectoryPrefetcher;
+        private final RegionPackBuilder regionPackBuilder;
+
+        private Resources(WifiLocationDatabase database, VerifyingWifiLocationCalculator calculator,
+                          TilePrefetcher prefetcher, TrajectoryPrefetcher trajectoryPrefetcher,
+                          RegionPackBuilder regionPackBuilder) {
+            this.database = database;
+            this.calculator = calculator;
+            this.prefetcher = prefetcher;
+            this.trajectoryPrefetcher = trajectoryPrefetcher;
+            this.regionPackBuilder = regionPackBuilder;
+        }
+    }
+
+    /**
+     * State of the latest scan, so later data can be folded in without looking up everything again.
+     * Changes after it became the current scan are made while holding its lock.
+     */
+    private static class ScanState {
+        private final Map<String, Integer> signalLevels = new HashMap<>();
+        private final Map<String, Location> locations = new HashMap<>();
+        private final List<String> deferred = new ArrayList<>();
+        private WiFi[] wiFis;
+        private Location reported;
+        /**
+         * Latest evaluation, rates the access points once the scan is over.
+         */
+        private VerifyingWifiLocationCalculator.Result result;
+        private boolean changed;
     }
 }
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2013-2018 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.backend.apple;
+
+import android.location.Location;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides which MAC addresses are requested together.
+ * <p>
+ * The batch size follows the {@link RateController} and grows further while the queue is deep
+ * and requests are fast. MAC addresses seen in the same scan are likely neighbours, so a batch
+ * takes at most one MAC per scan first, and MACs from a scan whose neighbourhood was just fetched
+ * are deferred, as they would mostly return access points we already know. Batches failing for
+ * reasons other than the network are split and retried, until the MAC causing the failure is
+ * isolated.
+ */
+public class BatchPolicy {
+    private static final String TAG = "AppleNlpBatchPolicy";
+    private static final long FETCHED_COOLDOWN = 5 * 60 * 1000;
+    private static final int DEEP_QUEUE_FACTOR = 3;
+    private static final float EFFICIENCY_EWMA_WEIGHT = 0.2F;
+
+    private final ArrayDeque<List<String>> retry = new ArrayDeque<>();
+    private final Map<String, Long> scanOfMac = new HashMap<>();
+    private final Map<Long, Long> fetchedScans = new HashMap<>();
+    private long scanId;
+    private int lastBatchSize;
+    private int lastResolved;
+    private float efficiency = -1;
+    private long poisonedCount;
+    private long splitCount;
+
+    /**
+     * Remember which unknown MAC addresses were seen together.
+     */
+    public synchronized void onScan(Collection<String> unknown) {
+        scanId++;
+        for (String mac : unknown) {
+            scanOfMac.put(mac, scanId);
+        }
+    }
+
+    public synchronized List<String> nextBatch(Set<String> queue, RateController rateController) {
+        long now = SystemClock.elapsedRealtime();
+        scanOfMac.keySet().retainAll(queue);
+        Iterator<Long> fetched = fetchedScans.values().iterator();
+        while (fetched.hasNext()) {
+            if (now - fetched.next() > FETCHED_COOLDOWN) fetched.remove();
+        }
+
+        while (!retry.isEmpty()) {
+            List<String> batch = new ArrayList<>(retry.pollFirst());
+            batch.retainAll(queue);
+            if (!batch.isEmpty()) return batch;
+        }
+
+        int size = rateController.getBatchSize();
+        if (queue.size() > size * DEEP_QUEUE_FACTOR && rateController.getState() == RateController.State.STEADY) {
+            size = Math.min(size * 2, LocationRetriever.MAX_MACS_PER_REQUEST);
+        }
+
+        List<String> batch = new ArrayList<>(size);
+        List<String> sameScan = new ArrayList<>();
+        List<String> deferred = new ArrayList<>();
+        Set<Long> scansInBatch = new HashSet<>();
+        for (String mac : queue) {
+            if (batch.size() >= size) break;
+            Long scan = scanOfMac.get(mac);
+            if (scan == null) {
+                batch.add(mac);
+            } else if (fetchedScans.containsKey(scan)) {
+                deferred.add(mac);
+            } else if (scansInBatch.add(scan)) {
+                batch.add(mac);
+            } else {
+                sameScan.add(mac);
+            }
+        }
+        fill(batch, sameScan, size);
+        fill(batch, deferred, size);
+        return batch;
+    }
+
+    private static void fill(List<String> batch, List<String> candidates, int size) {
+        for (int i = 0; i < candidates.size() && batch.size() < size; i++) {
+            batch.add(candidates.get(i));
+        }
+    }
+
+    public synchronized void onSuccess(List<String> batch, Collection<Location> response) {
+        long now = SystemClock.elapsedRealtime();
+        for (String mac : batch) {
+            Long scan = scanOfMac.get(mac);
+            if (scan != null) fetchedScans.put(scan, now);
+        }
+        int resolved = 0;
+        for (Location location : response) {
+            if (location.hasAccuracy() && location.getAccuracy() > 0) resolved++;
+        }
+        lastBatchSize = batch.size();
+        lastResolved = resolved;
+        efficiency = efficiency < 0 ? resolved : efficiency + EFFICIENCY_EWMA_WEIGHT * (resolved - efficiency);
+        Log.d(TAG, "Batch of " + batch.size() + " resolved " + resolved + " access points");
+    }
+
+    /**
+     * @return MAC addresses isolated as the cause of failures, they should not be requested again
+     */
+    public synchronized Collection<String> onFailure(List<String> batch, Exception e) {
+        if (!isCausedByBatch(e)) return Collections.emptyList();
+        if (batch.size() == 1) {
+            poisonedCount++;
+            Log.w(TAG, "Giving up on " + batch.get(0) + " after " + e);
+            return batch;
+        }
+        splitCount++;
+        int half = batch.size() / 2;
+        retry.addFirst(new ArrayList<>(batch.subList(half, batch.size())));
+        retry.addFirst(new ArrayList<>(batch.subList(0, half)));
+        return Collections.emptyList();
+    }
+
+    /**
+     * Failures of the network or the service are not caused by the content of the batch, while
+     * parse errors and client errors might be.
+     */
+    private static boolean isCausedByBatch(Exception e) {
+        if (e instanceof LocationRetriever.StatusException) {
+            LocationRetriever.StatusException se = (LocationRetriever.StatusException) e;
+            return !se.isThrottled() && se.status >= 400 && se.status < 500;
+        }
+        return !(e instanceof IOException);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "lastBatch=" + lastResolved + "/" + lastBatchSize + " resolvedPerRequest=" +
+                String.format("%.1f", Math.max(efficiency, 0)) + " pendingRetries=" + retry.size() +
+                " splits=" + splitCount + " poisoned=" + poisonedCount;
+    }
+}
@@ -0,0 +1,399 @@
+/*
+ * Copyright (C) 2013-2018 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.backend.apple;
+
+import android.location.Location;
+import android.os.Bundle;
+
+import org.microg.nlp.api.LocationHelper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.microg.nlp.api.WiFiBackendHelper.WiFi;
+
+/**
+ * Locally learned index of scan fingerprints and the fixes calculated for them.
+ * <p>
+ * A fingerprint is the set of the {@link #SKETCH_SIZE} strongest access points of a scan, with
+ * their signal level quantized to {@link #LEVEL_STEP} dBm. Fingerprints are indexed with MinHash
+ * locality-sensitive hashing: {@link #BANDS} bands of {@link #ROWS} min-hashes each, so scans
+ * sharing many strong access points end up in a common bucket. A query only scores the
+ * fingerprints in its buckets and averages the fixes of the best {@link #NEIGHBOURS}.
+ * <p>
+ * This allows fixes from access points that are not known to Apple or use randomized addresses,
+ * as long as they were seen together with known ones before.
+ */
+public class FingerprintIndex {
+    private static final int FILE_MAGIC = 0x41465031;
+    private static final int SKETCH_SIZE = 8;
+    private static final int BANDS = 8;
+    private static final int ROWS = 2;
+    private static final int LEVEL_STEP = 10;
+    private static final int LEVELS = 10;
+    private static final int MAX_BUCKET_SIZE = 8;
+    private static final int NEIGHBOURS = 3;
+    private static final float MIN_SIMILARITY = 0.3F;
+    /**
+     * A fingerprint this similar to an existing one updates it instead of being added.
+     */
+    private static final float MERGE_SIMILARITY = 0.9F;
+
+    private final int capacity;
+    private final long[] macs;
+    private final byte[] levels;
+    private final byte[] sizes;
+    private final long[] bandKeys;
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private final float[] accuracies;
+    private final Map<Long, int[]> buckets = new HashMap<>();
+    private int next;
+    private int count;
+    private long queryCount;
+    private long hitCount;
+
+    // Scratch space of the current sketch, only used while holding the lock
+    private final long[] sketchMacs = new long[SKETCH_SIZE];
+    private final byte[] sketchLevels = new byte[SKETCH_SIZE];
+    private final long[] sketchBandKeys = new long[BANDS];
+    private final int[] bestIndex = new int[NEIGHBOURS];
+    private final float[] bestSimilarity = new float[NEIGHBOURS];
+
+    public FingerprintIndex(int capacity) {
+        this.capacity = capacity;
+        macs = new long[capacity * SKETCH_SIZE];
+        levels = new byte[capacity * SKETCH_SIZE];
+        sizes = new byte[capacity];
+        bandKeys = new long[capacity * BANDS];
+        latitudes = new double[capacity];
+        longitudes = new double[capacity];
+        accuracies = new float[capacity];
+    }
+
+    private static long mix(long x) {
+        x = (x ^ (x >>> 33)) * 0xff51afd7ed558ccdL;
+        x = (x ^ (x >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return x ^ (x >>> 33);
+    }
+
+    private static byte quantize(int rssi) {
+        return (byte) Math.max(0, Math.min(LEVELS - 1, (rssi + 100) / LEVEL_STEP));
+    }
+
+    /**
+     * Build the sketch of the scan into the scratch arrays. Reorders the given array.
+     *
+     * @return number of access points in the sketch
+     */
+    private int sketch(WiFi[] wiFis) {
+        int selected = Math.min(SKETCH_SIZE, wiFis.length);
+        StrongestSelector.select(wiFis, 0, selected);
+        int size = 0;
+        for (int i = 0; i < selected; i++) {
+            long mac = WifiLocationCache.macToLong(wiFis[i].getBssid());
+            if (mac == -1) continue;
+            sketchMacs[size] = mac;
+            sketchLevels[size] = quantize(wiFis[i].getRssi());
+            size++;
+        }
+        computeBandKeys(size);
+        return size;
+    }
+
+    private void computeBandKeys(int size) {
+        for (int band = 0; band < BANDS; band++) {
+            long key = band;
+            for (int row = 0; row < ROWS; row++) {
+                long seed = mix(band * ROWS + row + 1);
+                long min = Long.MAX_VALUE;
+                for (int i = 0; i < size; i++) {
+                    min = Math.min(min, mix(sketchMacs[i] ^ seed));
+                }
+                key = mix(key * 31 + min);
+            }
+            sketchBandKeys[band] = key;
+        }
+    }
+
+    /**
+     * Similarity of the sketch to the given entry: the overlap of their access points, each
+     * common access point weighted by how close the signal levels are.
+     */
+    private float similarity(int size, int entry) {
+        int entrySize = sizes[entry];
+        float score = 0;
+        int common = 0;
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < entrySize; j++) {
+                if (macs[entry * SKETCH_SIZE + j] == sketchMacs[i]) {
+                    common++;
+                    score += 1 - (float) Math.abs(levels[entry * SKETCH_SIZE + j] - sketchLevels[i]) / LEVELS;
+                    break;
+                }
+            }
+        }
+        int union = size + entrySize - common;
+        return union == 0 ? 0 : score / union;
+    }
+
+    /**
+     * @return number of neighbours found, their indices and similarity are in the scratch arrays
+     */
+    private int findNeighbours(int size) {
+        int found = 0;
+        for (int band = 0; band < BANDS; band++) {
+            int[] bucket = buckets.get(sketchBandKeys[band]);
+            if (bucket == null) continue;
+            for (int k = 1; k <= bucket[0]; k++) {
+                int entry = bucket[k];
+                // Entries might have been replaced since they were added to the bucket
+                if (bandKeys[entry * BANDS + band] != sketchBandKeys[band]) continue;
+                boolean seen = false;
+                for (int i = 0; i < found; i++) {
+                    if (bestIndex[i] == entry) seen = true;
+                }
+                if (seen) continue;
+                float similarity = similarity(size, entry);
+                if (similarity < MIN_SIMILARITY) continue;
+                int pos;
+                if (found < NEIGHBOURS) {
+                    pos = found++;
+                } else if (similarity > bestSimilarity[NEIGHBOURS - 1]) {
+                    pos = NEIGHBOURS - 1;
+                } else {
+                    continue;
+                }
+                bestIndex[pos] = entry;
+                bestSimilarity[pos] = similarity;
+                // Keep sorted by similarity, best first
+                while (pos > 0 && bestSimilarity[pos - 1] < bestSimilarity[pos]) {
+                    swap(pos - 1, pos);
+                    pos--;
+                }
+            }
+        }
+        return found;
+    }
+
+    private void swap(int i, int j) {
+        int index = bestIndex[i];
+        bestIndex[i] = bestIndex[j];
+        bestIndex[j] = index;
+        float similarity = bestSimilarity[i];
+        bestSimilarity[i] = bestSimilarity[j];
+        bestSimilarity[j] = similarity;
+    }
+
+    /**
+     * Estimate a location from the fingerprints of similar past scans. Reorders the given array.
+     *
+     * @return the estimated location or null if no similar scan is known
+     */
+    public synchronized Location query(WiFi[] wiFis, String provider) {
+        queryCount++;
+        int size = sketch(wiFis);
+        if (size == 0 || count == 0) return null;
+        int found = findNeighbours(size);
+        if (found == 0) return null;
+        hitCount++;
+        double weightSum = 0, latitude = 0, longitude = 0, accuracy = 0;
+        for (int i = 0; i < found; i++) {
+            int entry = bestIndex[i];
+            weightSum += bestSimilarity[i];
+            latitude += latitudes[entry] * bestSimilarity[i];
+            longitude += longitudes[entry] * bestSimilarity[i];
+            accuracy += accuracies[entry] * bestSimilarity[i];
+        }
+        latitude /= weightSum;
+        longitude /= weightSum;
+        accuracy /= weightSum;
+        // Disagreement of the neighbours adds to the uncertainty
+        float[] distance = new float[1];
+        float spread = 0;
+        for (int i = 0; i < found; i++) {
+            Location.distanceBetween(latitude, longitude, latitudes[bestIndex[i]], longitudes[bestIndex[i]], distance);
+            spread = Math.max(spread, distance[0]);
+        }
+        Bundle extras = new Bundle();
+        extras.putInt("FINGERPRINTS", found);
+        extras.putFloat("FINGERPRINT_SIMILARITY", bestSimilarity[0]);
+        // Less similar scans are less reliable
+        return LocationHelper.create(provider, latitude, longitude,
+                (float) (accuracy + spread) / bestSimilarity[0], extras);
+    }
+
+    /**
+     * Remember the fix calculated for the scan. Reorders the given array.
+     */
+    public synchronized void learn(WiFi[] wiFis, Location fix) {
+        int size = sketch(wiFis);
+        if (size < ROWS) return;
+        if (count > 0 && findNeighbours(size) > 0 && bestSimilarity[0] >= MERGE_SIMILARITY) {
+            int entry = bestIndex[0];
+            latitudes[entry] = (latitudes[entry] + fix.getLatitude()) / 2;
+            longitudes[entry] = (longitudes[entry] + fix.getLongitude()) / 2;
+            accuracies[entry] = (accuracies[entry] + fix.getAccuracy()) / 2;
+            return;
+        }
+        int entry = next;
+        if (count == capacity) unindex(entry);
+        next = (next + 1) % capacity;
+        count = Math.min(count + 1, capacity);
+        System.arraycopy(sketchMacs, 0, macs, entry * SKETCH_SIZE, size);
+        System.arraycopy(sketchLevels, 0, levels, entry * SKETCH_SIZE, size);
+        sizes[entry] = (byte) size;
+        latitudes[entry] = fix.getLatitude();
+        longitudes[entry] = fix.getLongitude();
+        accuracies[entry] = fix.getAccuracy();
+        index(entry);
+    }
+
+    /**
+     * Add the entry to the buckets of the band keys in the scratch array.
+     */
+    private void index(int entry) {
+        for (int band = 0; band < BANDS; band++) {
+            long key = sketchBandKeys[band];
+            bandKeys[entry * BANDS + band] = key;
+            int[] bucket = buckets.get(key);
+            if (bucket == null) {
+                bucket = new int[MAX_BUCKET_SIZE + 1];
+                buckets.put(key, bucket);
+            }
+            if (bucket[0] < MAX_BUCKET_SIZE) {
+                bucket[++bucket[0]] = entry;
+            } else {
+                // Full bucket, replace the oldest entry
+                System.arraycopy(bucket, 2, bucket, 1, MAX_BUCKET_SIZE - 1);
+                bucket[MAX_BUCKET_SIZE] = entry;
+            }
+        }
+    }
+
+    /**
+     * Remove the entry from the buckets of its band keys, before its slot is overwritten. Buckets
+     * left empty are dropped, so the map doesn't keep growing with keys of replaced entries.
+     */
+    private void unindex(int entry) {
+        for (int band = 0; band < BANDS; band++) {
+            long key = bandKeys[entry * BANDS + band];
+            int[] bucket = buckets.get(key);
+            if (bucket == null) continue;
+            int size = 0;
+            for (int k = 1; k <= bucket[0]; k++) {
+                if (bucket[k] != entry) bucket[++size] = bucket[k];
+            }
+            bucket[0] = size;
+            if (size == 0) buckets.remove(key);
+        }
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * @return number of buckets currently held by the index
+     */
+    synchronized int getBucketCount() {
+        return buckets.size();
+    }
+
+    /**
+     * Write all fingerprints to a temporary file, then replace the given file with it, so a
+     * failed write doesn't destroy the previous state.
+     */
+    public synchronized void write(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(temp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+        try {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(count);
+            // Oldest first, so reading restores the same order
+            for (int i = 0; i < count; i++) {
+                int entry = (next - count + i + capacity) % capacity;
+                out.writeByte(sizes[entry]);
+                for (int j = 0; j < sizes[entry]; j++) {
+                    out.writeLong(macs[entry * SKETCH_SIZE + j]);
+                    out.writeByte(levels[entry * SKETCH_SIZE + j]);
+                }
+                out.writeDouble(latitudes[entry]);
+                out.writeDouble(longitudes[entry]);
+                out.writeFloat(accuracies[entry]);
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    /**
+     * @return number of fingerprints read
+     */
+    public synchronized int read(File file) throws IOException {
+        if (!file.exists()) return 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != FILE_MAGIC) return 0;
+            int stored = in.readInt();
+            int read = 0;
+            for (int i = 0; i < stored; i++) {
+                int size = in.readByte();
+                if (size < 0 || size > SKETCH_SIZE) throw new IOException("Corrupt fingerprint file");
+                int entry = next;
+                if (count == capacity) unindex(entry);
+                for (int j = 0; j < size; j++) {
+                    sketchMacs[j] = in.readLong();
+                    sketchLevels[j] = in.readByte();
+                }
+                latitudes[entry] = in.readDouble();
+                longitudes[entry] = in.readDouble();
+                accuracies[entry] = in.readFloat();
+                System.arraycopy(sketchMacs, 0, macs, entry * SKETCH_SIZE, size);
+                System.arraycopy(sketchLevels, 0, levels, entry * SKETCH_SIZE, size);
+                sizes[entry] = (byte) size;
+                computeBandKeys(size);
+                index(entry);
+                next = (next + 1) % capacity;
+                count = Math.min(count + 1, capacity);
+                read++;
+            }
+            return read;
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "size=" + count + "/" + capacity + " queries=" + queryCount + " hits=" + hitCount;
+    }
+}
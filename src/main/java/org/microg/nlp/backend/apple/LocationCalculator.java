@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2013-2018 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.backend.apple;
+
+import android.location.Location;
+
+import java.util.Set;
+
+/**
+ * Calculates a fix from the locations of the access points of a scan, with the signal level in
+ * their extras.
+ */
+public interface LocationCalculator {
+    /**
+     * @return the fix or null if the locations don't allow one
+     */
+    Location calculate(Set<Location> locations);
+}
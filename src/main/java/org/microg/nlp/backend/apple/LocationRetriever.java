@@ -18,57 +18,159 @@ package org.microg.nlp.backend.apple;
 
 import android.location.Location;
 import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
 
 import com.squareup.wire.Wire;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.net.ProtocolException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
-
-import javax.net.ssl.HttpsURLConnection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 public class LocationRetriever {
+    private static final String TAG = "AppleNlpRetriever";
     public static final String EXTRA_CHANNEL = "CHANNEL";
     public static final String EXTRA_MAC_ADDRESS = "MAC_ADDRESS";
     public static final String EXTRA_SIGNAL_LEVEL = "SIGNAL_LEVEL";
     public static final String EXTRA_VERIFIED_TIME = "VERIFIED_TIME";
+    /**
+     * Maximum number of MAC addresses per request: the largest batch whose framing is covered by
+     * the tests against a stub server. Far below what the 16 bit length allows, the service
+     * itself was not measured with batches this large.
+     */
+    public static final int MAX_MACS_PER_REQUEST = 400;
+    /**
+     * Header of each request, followed by the length of the request message as big endian 16 bit
+     * integer and the message itself.
+     */
     private static final byte[] APPLE_MAGIC_BYTES = {0, 1, 0, 5, 101, 110, 95, 85, 83, 0, 0, 0,
-            11, 52, 46, 50, 46, 49, 46, 56, 67, 49, 52, 56, 0, 0, 0, 1, 0, 0, 0};
+            11, 52, 46, 50, 46, 49, 46, 56, 67, 49, 52, 56, 0, 0, 0, 1, 0, 0};
+    private static final int REQUEST_HEADER_SIZE = APPLE_MAGIC_BYTES.length + 2;
+    private static final int MAX_REQUEST_SIZE = 0xffff;
     private static final String SERVICE_HOST = "iphone-services.apple.com";
     private static final String SERVICE_URL = "https://" + SERVICE_HOST + "/clls/wloc";
     private static final String HTTP_FIELD_CONTENT_TYPE = "Content-Type";
     private static final String HTTP_FIELD_CONTENT_LENGTH = "Content-Length";
     private static final String CONTENT_TYPE_URLENCODED = "application/x-www-form-urlencoded";
     private static final float WIRE_LATLON = 1E8F;
+    /**
+     * Field number of the access points in the response message.
+     */
+    private static final int RESPONSE_FIELD_WIFIS = 2;
+    /**
+     * Upper bound for the size of a single access point in the response. They take about a
+     * hundred bytes, anything larger is a malformed response, not worth allocating for.
+     */
+    private static final int MAX_RESPONSE_WIFI_SIZE = 4096;
+    private static final int RESPONSE_HEADER_SIZE = 10;
+    /**
+     * Number of decoded locations handed to the {@link Sink} at once.
+     */
+    private static final int STREAM_CHUNK_SIZE = 20;
+    /**
+     * Number of recent latencies of hedgeable requests used to learn the hedging delay.
+     */
+    private static final int LATENCY_WINDOW = 64;
+    private static final int MIN_LATENCY_SAMPLES = 16;
+    private static final double HEDGE_PERCENTILE = 95;
+    /**
+     * Maximum share of hedgeable requests that are hedged.
+     */
+    private static final float MAX_HEDGE_RATIO = 0.1F;
     private final Wire wire = new Wire();
+    private final String serviceUrl;
+    /**
+     * Request buffer of each thread, starting with the magic bytes. Requests are sent from several
+     * threads at once when hedging.
+     */
+    private final ThreadLocal<byte[]> requestBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return createRequestBuffer(512);
+        }
+    };
+    private final long[] latencies = new long[LATENCY_WINDOW];
+    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "AppleNlpRetriever");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private int latencyCount;
+    private RateController rateController;
+    private long requestCount;
+    private long hedgeableCount;
+    private long hedgeCount;
+    private long hedgeWinCount;
 
-    private static byte[] combineBytes(byte[] first, byte[] second, byte divider) {
-        byte[] bytes = new byte[first.length + second.length + 1];
-        System.arraycopy(first, 0, bytes, 0, first.length);
-        bytes[first.length] = divider;
-        System.arraycopy(second, 0, bytes, first.length + 1, second.length);
-        return bytes;
+    public LocationRetriever() {
+        this(SERVICE_URL);
     }
 
-    private static HttpsURLConnection createConnection() throws IOException {
-        return createConnection(SERVICE_URL);
+    /**
+     * @param serviceUrl URL to send requests to, only different from the default for tests
+     */
+    LocationRetriever(String serviceUrl) {
+        this.serviceUrl = serviceUrl;
     }
 
-    private static HttpsURLConnection createConnection(String url) throws IOException {
+    private static byte[] createRequestBuffer(int size) {
+        byte[] buffer = new byte[size];
+        System.arraycopy(APPLE_MAGIC_BYTES, 0, buffer, 0, APPLE_MAGIC_BYTES.length);
+        return buffer;
+    }
+
+    /**
+     * Encode the request behind the magic bytes of this thread's request buffer, without
+     * intermediate copies.
+     *
+     * @return number of bytes of {@link #requestBuffer} to send
+     */
+    private int encode(Request request) throws IOException {
+        int size = request.getSerializedSize();
+        if (size > MAX_REQUEST_SIZE) {
+            throw new IOException("Request of " + size + " bytes is too large");
+        }
+        byte[] buffer = requestBuffer.get();
+        if (buffer.length < REQUEST_HEADER_SIZE + size) {
+            buffer = createRequestBuffer(Math.max(REQUEST_HEADER_SIZE + size, buffer.length * 2));
+            requestBuffer.set(buffer);
+        }
+        buffer[APPLE_MAGIC_BYTES.length] = (byte) (size >> 8);
+        buffer[APPLE_MAGIC_BYTES.length + 1] = (byte) size;
+        request.writeTo(buffer, REQUEST_HEADER_SIZE, size);
+        return REQUEST_HEADER_SIZE + size;
+    }
+
+    private static HttpURLConnection createConnection(String url) throws IOException {
         return createConnection(new URL(url));
     }
 
-    private static HttpsURLConnection createConnection(URL url) throws IOException {
-        return (HttpsURLConnection) url.openConnection();
+    private static HttpURLConnection createConnection(URL url) throws IOException {
+        return (HttpURLConnection) url.openConnection();
     }
 
-    private static Request createRequest(String... macs) {
+    static Request createRequest(String... macs) {
         List<Request.RequestWifi> wifis = new ArrayList<Request.RequestWifi>();
         for (final String mac : macs) {
             wifis.add(new Request.RequestWifi.Builder().mac(mac).build());
@@ -77,7 +179,7 @@ public class LocationRetriever {
                 (wifis).build();
     }
 
-    private static void prepareConnection(HttpsURLConnection connection,
+    private static void prepareConnection(HttpURLConnection connection,
             int length) throws ProtocolException {
         connection.setRequestMethod("POST");
         connection.setDoInput(true);
@@ -87,20 +189,54 @@ public class LocationRetriever {
         connection.setRequestProperty(HTTP_FIELD_CONTENT_LENGTH, String.valueOf(length));
     }
 
-    private static byte[] readStreamToEnd(InputStream is) throws IOException {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        if (is != null) {
-            byte[] buff = new byte[1024];
-            while (true) {
-                int nb = is.read(buff);
-                if (nb < 0) {
-                    break;
-                }
-                bos.write(buff, 0, nb);
+    private static long readVarint(InputStream in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) throw new EOFException();
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return result;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() < 0) throw new EOFException();
+                skipped = 1;
             }
-            is.close();
+            count -= skipped;
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] buffer, int count) throws IOException {
+        int offset = 0;
+        while (offset < count) {
+            int read = in.read(buffer, offset, count - offset);
+            if (read < 0) throw new EOFException();
+            offset += read;
+        }
+    }
+
+    private static void skipField(InputStream in, int wireType) throws IOException {
+        switch (wireType) {
+            case 0:
+                readVarint(in);
+                break;
+            case 1:
+                skipFully(in, 8);
+                break;
+            case 2:
+                skipFully(in, readVarint(in));
+                break;
+            case 5:
+                skipFully(in, 4);
+                break;
+            default:
+                throw new IOException("Unsupported wire type " + wireType);
         }
-        return bos.toByteArray();
     }
 
     /**
@@ -175,28 +311,324 @@ public class LocationRetriever {
         return location;
     }
 
+    /**
+     * Charge hedged duplicates to the given rate controller, a request is only hedged if the
+     * controller allows another request right away.
+     */
+    public synchronized void setRateController(RateController rateController) {
+        this.rateController = rateController;
+    }
+
+    /**
+     * Retrieve the locations of the given MAC addresses and their neighbours. Locations are
+     * decoded while the response is still arriving and handed to the sink in small chunks, on
+     * the thread reading the response. The sink may block to slow down reading.
+     * <p>
+     * If the request is hedged, the sink only receives the locations of one of the attempts at a
+     * time. Should the attempt delivering fail or lose, the other one continues, so some
+     * locations might be delivered twice.
+     *
+     * @param hedgeable whether the request may be hedged: if it did not complete within the
+     *                  95th percentile of recent hedgeable requests, a duplicate is sent on a
+     *                  second connection and the first answer is used. At most 10% of hedgeable
+     *                  requests are hedged, and only if the
+     *                  {@link #setRateController rate controller} allows another request. Meant
+     *                  for requests a fix is waiting for, not for bulk requests.
+     */
+    public void retrieveLocations(String[] macs, Sink sink, boolean hedgeable)
+            throws IOException {
+        StreamGate gate = new StreamGate(sink);
+        long hedgeDelay = getHedgeDelay(hedgeable);
+        if (hedgeDelay < 0) {
+            long start = SystemClock.elapsedRealtime();
+            try {
+                new Attempt(macs, gate).call();
+            } finally {
+                gate.close();
+            }
+            // Bulk requests take longer, they would only delay hedging of the others
+            if (hedgeable) recordLatency(SystemClock.elapsedRealtime() - start);
+            return;
+        }
+
+        CompletionService<Void> completion = new ExecutorCompletionService<>(executor);
+        long start = SystemClock.elapsedRealtime();
+        Attempt primary = new Attempt(macs, gate);
+        Attempt hedge = null;
+        Future<Void> primaryFuture = completion.submit(primary);
+        Future<Void> hedgeFuture = null;
+        Future<Void> winner = null;
+        try {
+            Future<Void> done = completion.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+            if (done == null && startHedge()) {
+                hedge = new Attempt(macs, gate);
+                hedgeFuture = completion.submit(hedge);
+                Log.d(TAG, "Hedging request after " + hedgeDelay + "ms");
+            }
+            int running = hedgeFuture == null ? 1 : 2;
+            if (done != null) running--;
+            while (true) {
+                if (done == null) {
+                    done = completion.take();
+                    running--;
+                }
+                try {
+                    done.get();
+                    winner = done;
+                    if (done == hedgeFuture) {
+                        synchronized (this) {
+                            hedgeWinCount++;
+                        }
+                    }
+                    // The latency the caller saw, not the winner's own, which started later when hedged
+                    recordLatency(SystemClock.elapsedRealtime() - start);
+                    return;
+                } catch (ExecutionException e) {
+                    if (running == 0) {
+                        if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                        if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                        throw new IOException(e.getCause());
+                    }
+                    done = null;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for response");
+        } finally {
+            // Nothing may reach the sink after returning
+            gate.close();
+            // Abort the loser, so it doesn't occupy a connection any longer
+            if (winner != primaryFuture) {
+                primaryFuture.cancel(true);
+                primary.abort();
+            }
+            if (hedgeFuture != null && winner != hedgeFuture) {
+                hedgeFuture.cancel(true);
+                hedge.abort();
+            }
+        }
+    }
+
+    public void retrieveLocations(String[] macs, Sink sink) throws IOException {
+        retrieveLocations(macs, sink, false);
+    }
+
     public Collection<Location> retrieveLocations(String... macs) throws IOException {
-        Request request = createRequest(macs);
-        byte[] byteb = request.toByteArray();
-        byte[] bytes = combineBytes(APPLE_MAGIC_BYTES, byteb, (byte) byteb.length);
-        HttpsURLConnection connection = createConnection();
-        prepareConnection(connection, bytes.length);
+        final List<Location> locations = new ArrayList<Location>();
+        retrieveLocations(macs, new Sink() {
+            @Override
+            public void onLocations(List<Location> chunk) {
+                locations.addAll(chunk);
+            }
+        });
+        return locations;
+    }
+
+    /**
+     * @return delay after which the current request should be hedged, or -1 if it should not
+     */
+    private synchronized long getHedgeDelay(boolean hedgeable) {
+        requestCount++;
+        if (!hedgeable) return -1;
+        hedgeableCount++;
+        if (latencyCount < MIN_LATENCY_SAMPLES) return -1;
+        long[] sorted = Arrays.copyOf(latencies, Math.min(latencyCount, LATENCY_WINDOW));
+        Arrays.sort(sorted);
+        return sorted[(int) Math.min(Math.ceil(sorted.length * HEDGE_PERCENTILE / 100), sorted.length - 1)];
+    }
+
+    private synchronized boolean startHedge() {
+        if (hedgeCount + 1 > hedgeableCount * MAX_HEDGE_RATIO) return false;
+        if (rateController != null && !rateController.tryAcquire()) return false;
+        hedgeCount++;
+        return true;
+    }
+
+    private synchronized void recordLatency(long millis) {
+        latencies[latencyCount++ % LATENCY_WINDOW] = millis;
+    }
+
+    public synchronized long getRequestCount() {
+        return requestCount;
+    }
+
+    public synchronized long getHedgeCount() {
+        return hedgeCount;
+    }
+
+    /**
+     * @return number of hedged requests where the duplicate answered first
+     */
+    public synchronized long getHedgeWinCount() {
+        return hedgeWinCount;
+    }
+
+    private void request(String[] macs, Attempt attempt) throws IOException {
+        int length = encode(createRequest(macs));
+        HttpURLConnection connection = createConnection(serviceUrl);
+        attempt.connection = connection;
+        prepareConnection(connection, length);
         OutputStream out = connection.getOutputStream();
-        out.write(bytes);
+        out.write(requestBuffer.get(), 0, length);
         out.flush();
         out.close();
-        InputStream in = connection.getInputStream();
-        in.skip(10);
-        Response response = wire.parseFrom(readStreamToEnd(in), Response.class);
-        in.close();
-        Collection<Location> locations = new ArrayList<Location>();
-        for (Response.ResponseWifi wifi : response.wifis) {
-            locations.add(fromResponseWifi(wifi));
+        int status = connection.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK) {
+            throw new StatusException(status);
+        }
+        InputStream in = new BufferedInputStream(connection.getInputStream());
+        try {
+            skipFully(in, RESPONSE_HEADER_SIZE);
+            decode(in, attempt);
+        } finally {
+            in.close();
         }
-        return locations;
+    }
+
+    /**
+     * Decode the access points of the response message one by one, without reading the whole
+     * message first. Other fields are skipped.
+     */
+    private void decode(InputStream in, Attempt attempt) throws IOException {
+        List<Location> chunk = new ArrayList<Location>(STREAM_CHUNK_SIZE);
+        byte[] buffer = new byte[256];
+        while (true) {
+            in.mark(1);
+            if (in.read() < 0) break;
+            in.reset();
+            long tag = readVarint(in);
+            int wireType = (int) (tag & 7);
+            if ((tag >>> 3) != RESPONSE_FIELD_WIFIS || wireType != 2) {
+                skipField(in, wireType);
+                continue;
+            }
+            long declared = readVarint(in);
+            if (declared < 0 || declared > MAX_RESPONSE_WIFI_SIZE) {
+                throw new IOException("Malformed length " + declared);
+            }
+            int length = (int) declared;
+            if (buffer.length < length) buffer = new byte[Math.max(length, buffer.length * 2)];
+            readFully(in, buffer, length);
+            Location location = fromResponseWifi(wire.parseFrom(buffer, 0, length, Response.ResponseWifi.class));
+            if (location == null) continue;
+            chunk.add(location);
+            if (chunk.size() >= STREAM_CHUNK_SIZE) {
+                attempt.deliver(chunk);
+                chunk = new ArrayList<Location>(STREAM_CHUNK_SIZE);
+            }
+        }
+        if (!chunk.isEmpty()) attempt.deliver(chunk);
     }
 
     public Collection<Location> retrieveLocations(Collection<String> macs) throws IOException {
         return retrieveLocations(macs.toArray(new String[macs.size()]));
     }
+
+    /**
+     * Thrown if the service answered with an HTTP status other than 200.
+     */
+    public static class StatusException extends IOException {
+        public final int status;
+
+        public StatusException(int status) {
+            super("HTTP status " + status);
+            this.status = status;
+        }
+
+        /**
+         * @return true if the status signals that we are sending too many requests
+         */
+        public boolean isThrottled() {
+            return status == 429 || status == HttpURLConnection.HTTP_UNAVAILABLE;
+        }
+    }
+
+    /**
+     * Receives locations while a response is decoded.
+     */
+    public interface Sink {
+        void onLocations(List<Location> chunk) throws IOException;
+    }
+
+    /**
+     * Lets only one attempt of a hedged request deliver to the sink at a time. Chunks of the
+     * other attempt are held back, and delivered if it takes over.
+     */
+    private static class StreamGate {
+        private final Sink sink;
+        private Attempt owner;
+        private boolean closed;
+
+        private StreamGate(Sink sink) {
+            this.sink = sink;
+        }
+
+        synchronized void deliver(Attempt attempt, List<Location> chunk) throws IOException {
+            if (closed) return;
+            if (owner == null) takeOver(attempt);
+            if (owner == attempt) {
+                sink.onLocations(chunk);
+            } else {
+                attempt.held.add(chunk);
+            }
+        }
+
+        /**
+         * Make the attempt the owner, delivering what it held back.
+         */
+        synchronized void takeOver(Attempt attempt) throws IOException {
+            if (closed) return;
+            owner = attempt;
+            for (List<Location> chunk : attempt.held) {
+                sink.onLocations(chunk);
+            }
+            attempt.held.clear();
+        }
+
+        synchronized void release(Attempt attempt) {
+            if (owner == attempt) owner = null;
+        }
+
+        synchronized void close() {
+            closed = true;
+        }
+    }
+
+    /**
+     * A single request on its own connection, which can be aborted from another thread.
+     */
+    private class Attempt implements Callable<Void> {
+        private final String[] macs;
+        private final StreamGate gate;
+        private final List<List<Location>> held = new ArrayList<List<Location>>();
+        private volatile HttpURLConnection connection;
+
+        private Attempt(String[] macs, StreamGate gate) {
+            this.macs = macs;
+            this.gate = gate;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            try {
+                request(macs, this);
+                // Completed first, anything held back is needed now
+                if (!held.isEmpty()) gate.takeOver(this);
+            } catch (IOException | RuntimeException e) {
+                gate.release(this);
+                throw e;
+            }
+            return null;
+        }
+
+        private void deliver(List<Location> chunk) throws IOException {
+            gate.deliver(this, chunk);
+        }
+
+        private void abort() {
+            HttpURLConnection connection = this.connection;
+            if (connection != null) connection.disconnect();
+        }
+    }
 }
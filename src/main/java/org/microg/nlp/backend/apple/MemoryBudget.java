@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2013-2018 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.backend.apple;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sizes the in-process access point data, like the location cache, the retrieval queue and the
+ * pregrab overlay, to the memory of the device.
+ * <p>
+ * The budget is a share of the heap limit of the app, halved on low-RAM devices. Each registered
+ * {@link Tier} gets a share of it, converted to a number of items with an estimated size per
+ * item. On memory pressure, as signaled through {@link #onTrimMemory(int)}, all tiers are shrunk
+ * or dropped, and grow back once there was no pressure for {@link #RECOVERY_DELAY}.
+ */
+public class MemoryBudget {
+    private static final String TAG = "AppleNlpMemory";
+    /**
+     * Share of the heap limit used for all tiers together.
+     */
+    private static final int HEAP_DIVISOR = 8;
+    private static final long RECOVERY_DELAY = 10 * 60 * 1000;
+
+    private final long budget;
+    private final int memoryClass;
+    private final boolean lowRam;
+    private final List<Entry> entries = new ArrayList<>();
+    private float scale = 1;
+    private int trimLevel;
+    private long lastTrim;
+    private long trimCount;
+
+    public MemoryBudget(Context context) {
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        memoryClass = activityManager.getMemoryClass();
+        lowRam = Build.VERSION.SDK_INT >= 19 && activityManager.isLowRamDevice();
+        budget = memoryClass * 1024L * 1024L / (lowRam ? HEAP_DIVISOR * 2 : HEAP_DIVISOR);
+        Log.d(TAG, "Budget of " + budget / 1024 + "KiB for memory class " + memoryClass + "MB" +
+                (lowRam ? " (low RAM)" : ""));
+    }
+
+    /**
+     * Add a tier and set its capacity right away.
+     *
+     * @param share     share of the budget, all shares should add up to at most one
+     * @param itemBytes estimated heap size of one item
+     * @param minItems  capacity to keep unless memory is critical
+     * @param maxItems  capacity not to exceed even with a large budget
+     */
+    public void register(String name, Tier tier, float share, int itemBytes, int minItems, int maxItems) {
+        Entry entry = new Entry(name, tier, share, itemBytes, minItems, maxItems);
+        int capacity;
+        synchronized (this) {
+            entries.add(entry);
+            capacity = getCapacity(entry);
+        }
+        tier.setCapacity(capacity);
+    }
+
+    public synchronized void unregister(Tier tier) {
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.get(i).tier == tier) {
+                entries.remove(i);
+                return;
+            }
+        }
+    }
+
+    private int getCapacity(Entry entry) {
+        if (scale == 0) return 0;
+        int capacity = (int) Math.min(budget * scale * entry.share / entry.itemBytes, entry.maxItems);
+        return Math.max(capacity, entry.minItems);
+    }
+
+    /**
+     * Shrink the tiers according to the level passed to
+     * {@link ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    public void onTrimMemory(int level) {
+        float scale;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE ||
+                level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            // Next in line to be killed, or the foreground is short of memory
+            scale = 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE ||
+                level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            scale = 0.25F;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND ||
+                level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            scale = 0.5F;
+        } else {
+            // UI hidden: only the pregrab activity's views, nothing to do here
+            return;
+        }
+        synchronized (this) {
+            trimLevel = level;
+            trimCount++;
+            lastTrim = SystemClock.elapsedRealtime();
+            if (scale >= this.scale) return;
+            this.scale = scale;
+        }
+        Log.d(TAG, "Trimming to " + Math.round(scale * 100) + "% for level " + level);
+        apply();
+    }
+
+    /**
+     * Same as the most critical trim level, for platform versions without
+     * {@link ComponentCallbacks2}.
+     */
+    public void onLowMemory() {
+        onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
+
+    /**
+     * Restore the full budget if there was no memory pressure for a while. Cheap enough to be
+     * called for every scan.
+     */
+    public void maybeRecover() {
+        synchronized (this) {
+            if (scale == 1 || SystemClock.elapsedRealtime() - lastTrim < RECOVERY_DELAY) return;
+            scale = 1;
+            trimLevel = 0;
+        }
+        Log.d(TAG, "Restoring full budget");
+        apply();
+    }
+
+    private void apply() {
+        List<Entry> entries;
+        int[] capacities;
+        synchronized (this) {
+            entries = new ArrayList<>(this.entries);
+            capacities = new int[entries.size()];
+            for (int i = 0; i < capacities.length; i++) {
+                capacities[i] = getCapacity(entries.get(i));
+            }
+        }
+        // Outside of the lock, tiers take their own locks
+        for (int i = 0; i < capacities.length; i++) {
+            entries.get(i).tier.setCapacity(capacities[i]);
+        }
+    }
+
+    /**
+     * @return estimated heap size of all items currently held by the tiers
+     */
+    public long getFootprint() {
+        List<Entry> entries;
+        synchronized (this) {
+            entries = new ArrayList<>(this.entries);
+        }
+        long footprint = 0;
+        for (Entry entry : entries) {
+            footprint += (long) entry.tier.size() * entry.itemBytes;
+        }
+        return footprint;
+    }
+
+    @Override
+    public String toString() {
+        List<Entry> entries;
+        StringBuilder sb = new StringBuilder();
+        synchronized (this) {
+            entries = new ArrayList<>(this.entries);
+            sb.append("memoryClass=").append(memoryClass).append("MB lowRam=").append(lowRam)
+                    .append(" budget=").append(budget / 1024).append("KiB scale=").append(scale)
+                    .append(" trimLevel=").append(trimLevel).append(" trims=").append(trimCount);
+        }
+        sb.append(" footprint=").append(getFootprint() / 1024).append("KiB");
+        for (Entry entry : entries) {
+            int size = entry.tier.size();
+            int capacity;
+            synchronized (this) {
+                capacity = getCapacity(entry);
+            }
+            sb.append("\n  ").append(entry.name).append(": ").append(size).append("/").append(capacity)
+                    .append(" ~").append((long) size * entry.itemBytes / 1024).append("KiB");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * In-process data that can be resized.
+     */
+    public interface Tier {
+        /**
+         * @return number of items currently held
+         */
+        int size();
+
+        /**
+         * Drop items until at most the given number is held, and don't grow beyond it. A capacity of
+         * zero drops the tier.
+         */
+        void setCapacity(int capacity);
+    }
+
+    private static class Entry {
+        private final String name;
+        private final Tier tier;
+        private final float share;
+        private final int itemBytes;
+        private final int minItems;
+        private final int maxItems;
+
+        private Entry(String name, Tier tier, float share, int itemBytes, int minItems, int maxItems) {
+            this.name = name;
+            this.tier = tier;
+            this.share = share;
+            this.itemBytes = itemBytes;
+            this.minItems = minItems;
+            this.maxItems = maxItems;
+        }
+    }
+}
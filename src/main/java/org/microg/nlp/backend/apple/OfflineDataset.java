@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2013-2018 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.backend.apple;
+
+import android.location.Location;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only bulk dataset of access point locations, for areas without network coverage.
+ * <p>
+ * The dataset is a binary pack of records sorted by MAC address, memory-mapped and searched
+ * binary, so it needs neither loading time nor heap. A CSV file with lines of
+ * {@code mac,latitude,longitude[,accuracy]} can be provided instead, it is converted to a pack
+ * when it is newer than the existing one.
+ */
+public class OfflineDataset implements AccessPointSource {
+    private static final String TAG = "AppleNlpOfflineDataset";
+    /**
+     * Set on locations from the dataset, they are neither stored nor cached.
+     */
+    public static final String EXTRA_OFFLINE = "OFFLINE";
+    private static final int PACK_MAGIC = 0x41504b31;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_SIZE = 8 + 8 + 8 + 4;
+    private static final float DEFAULT_ACCURACY = 100;
+
+    private volatile MappedByteBuffer buffer;
+    private volatile int count;
+
+    @Override
+    public String getName() {
+        return "offline";
+    }
+
+    @Override
+    public boolean isSlow() {
+        return false;
+    }
+
+    /**
+     * Open the pack, converting the CSV file first if it is newer.
+     *
+     * @return number of access points in the dataset
+     */
+    public int open(File pack, File csv) throws IOException {
+        if (csv.exists() && (!pack.exists() || csv.lastModified() > pack.lastModified())) {
+            long start = System.currentTimeMillis();
+            int converted = convert(csv, pack);
+            Log.d(TAG, "Converted " + converted + " access points in " +
+                    (System.currentTimeMillis() - start) + "ms");
+        }
+        if (!pack.exists()) return 0;
+        RandomAccessFile raf = new RandomAccessFile(pack, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() < HEADER_SIZE) return 0;
+            // The mapping stays valid after the file is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt(0) != PACK_MAGIC) return 0;
+            int count = (int) Math.min(buffer.getInt(4), (channel.size() - HEADER_SIZE) / RECORD_SIZE);
+            this.buffer = buffer;
+            this.count = count;
+            return count;
+        } finally {
+            raf.close();
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public Location get(String mac) {
+        MappedByteBuffer buffer = this.buffer;
+        if (buffer == null) return null;
+        long key = WifiLocationCache.macToLong(mac);
+        if (key == -1) return null;
+        int low = 0, high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int offset = HEADER_SIZE + mid * RECORD_SIZE;
+            long value = buffer.getLong(offset);
+            if (value < key) {
+                low = mid + 1;
+            } else if (value > key) {
+                high = mid - 1;
+            } else {
+                Location location = new Location("offline");
+                location.setLatitude(buffer.getDouble(offset + 8));
+                location.setLongitude(buffer.getDouble(offset + 16));
+                location.setAccuracy(buffer.getFloat(offset + 24));
+                // Not to be refreshed from the network
+                location.setTime(System.currentTimeMillis());
+                Bundle extras = new Bundle();
+                extras.putString(LocationRetriever.EXTRA_MAC_ADDRESS, mac);
+                extras.putBoolean(EXTRA_OFFLINE, true);
+                location.setExtras(extras);
+                return location;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Convert a CSV file to a sorted pack. Invalid lines are skipped.
+     *
+     * @return number of access points written
+     */
+    public static int convert(File csv, File pack) throws IOException {
+        long[] macs = new long[1024];
+        double[] latitudes = new double[1024];
+        double[] longitudes = new double[1024];
+        float[] accuracies = new float[1024];
+        int size = 0;
+        BufferedReader reader = new BufferedReader(new FileReader(csv));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.trim().split(",");
+                if (parts.length < 3) continue;
+                long mac = WifiLocationCache.macToLong(parts[0].trim());
+                if (mac == -1) continue;
+                try {
+                    double latitude = Double.parseDouble(parts[1].trim());
+                    double longitude = Double.parseDouble(parts[2].trim());
+                    float accuracy = parts.length > 3 ? Float.parseFloat(parts[3].trim()) : DEFAULT_ACCURACY;
+                    if (size == macs.length) {
+                        macs = grow(macs);
+                        latitudes = grow(latitudes);
+                        longitudes = grow(longitudes);
+                        accuracies = grow(accuracies);
+                    }
+                    macs[size] = mac;
+                    latitudes[size] = latitude;
+                    longitudes[size] = longitude;
+                    accuracies[size] = accuracy;
+                    size++;
+                } catch (NumberFormatException ignored) {
+                    // Header line or broken record
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        sort(macs, latitudes, longitudes, accuracies, 0, size - 1);
+
+        File tmp = new File(pack.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        int written = 0;
+        try {
+            out.writeInt(PACK_MAGIC);
+            // Count is only known after removing duplicates
+            out.writeInt(0);
+            for (int i = 0; i < size; i++) {
+                // Only one record per MAC is kept
+                if (i + 1 < size && macs[i + 1] == macs[i]) continue;
+                out.writeLong(macs[i]);
+                out.writeDouble(latitudes[i]);
+                out.writeDouble(longitudes[i]);
+                out.writeFloat(accuracies[i]);
+                written++;
+            }
+        } finally {
+            out.close();
+        }
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            raf.seek(4);
+            raf.writeInt(written);
+        } finally {
+            raf.close();
+        }
+        if (!tmp.renameTo(pack)) throw new IOException("Could not rename " + tmp);
+        return written;
+    }
+
+    private static long[] grow(long[] array) {
+        long[] result = new long[array.length * 2];
+        System.arraycopy(array, 0, result, 0, array.length);
+        return result;
+    }
+
+    private static double[] grow(double[] array) {
+        double[] result = new double[array.length * 2];
+        System.arraycopy(array, 0, result, 0, array.length);
+        return result;
+    }
+
+    private static float[] grow(float[] array) {
+        float[] result = new float[array.length * 2];
+        System.arraycopy(array, 0, result, 0, array.length);
+        return result;
+    }
+
+    /**
+     * Sort the parallel arrays by MAC address, in place.
+     */
+    private static void sort(long[] macs, double[] latitudes, double[] longitudes, float[] accuracies,
+                             int left, int right) {
+        while (left < right) {
+            long pivot = macs[(left + right) >>> 1];
+            int i = left, j = right;
+            while (i <= j) {
+                while (macs[i] < pivot) i++;
+                while (macs[j] > pivot) j--;
+                if (i <= j) {
+                    long mac = macs[i];
+                    macs[i] = macs[j];
+                    macs[j] = mac;
+                    double latitude = latitudes[i];
+                    latitudes[i] = latitudes[j];
+                    latitudes[j] = latitude;
+                    double longitude = longitudes[i];
+                    longitudes[i] = longitudes[j];
+                    longitudes[j] = longitude;
+                    float accuracy = accuracies[i];
+                    accuracies[i] = accuracies[j];
+                    accuracies[j] = accuracy;
+                    i++;
+                    j--;
+                }
+            }
+            // Recurse into the smaller part, loop on the larger one
+            if (j - left < right - i) {
+                sort(macs, latitudes, longitudes, accuracies, left, j);
+                left = i;
+            } else {
+                sort(macs, latitudes, longitudes, accuracies, i, right);
+                right = j;
+            }
+        }
+    }
+}
@@ -40,6 +40,7 @@ import org.osmdroid.views.overlay.mylocation.MyLocationNewOverlay;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 public class PregrabActivity extends Activity {
@@ -50,17 +51,38 @@ public class PregrabActivity extends Activity {
     private WifiLocationDatabase database;
     private WifiCircleOverlay wifisOverlay;
     private CenterOverlay centerOverlay;
-    private LocationRetriever retriever;
+    private RetrievalCoordinator coordinator;
     private Paint circlePaint;
     private Paint errorPaint;
     private MyLocationNewOverlay myLocationOverlay;
     private static long MAX_AGE = 1000L * 60 * 60 * 24 * 30;
+    /**
+     * Overlay items are dropped oldest first when the memory budget shrinks.
+     */
+    private final MemoryBudget.Tier overlayTier = new MemoryBudget.Tier() {
+        @Override
+        public int size() {
+            synchronized (items) {
+                return items.size();
+            }
+        }
+
+        @Override
+        public void setCapacity(int capacity) {
+            synchronized (items) {
+                overlayCapacity = capacity;
+                trimItems();
+            }
+        }
+    };
+    private int overlayCapacity = Integer.MAX_VALUE;
 
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.pregrab);
-        database = new WifiLocationDatabase(this);
-        retriever = new LocationRetriever();
+        coordinator = RetrievalCoordinator.getInstance(this);
+        database = coordinator.getDatabase();
+        coordinator.getMemoryBudget().register("overlay", overlayTier, 0.1F, 100, 50, 5000);
         mapView = (MapView) findViewById(R.id.map);
         wifisOverlay = new WifiCircleOverlay();
         centerOverlay = new CenterOverlay();
@@ -102,22 +124,23 @@ public class PregrabActivity extends Activity {
                         Log.d(TAG, "Based on location: " + next);
                         String now = next.getExtras().getString("MAC_ADDRESS");
                         try {
-                            Collection<Location> response = retriever.retrieveLocations(now);
-                            WifiLocationDatabase.Editor editor = database.edit();
+                            Collection<Location> response = coordinator.retrieve(
+                                    Collections.singleton(now), null);
                             float radius = 0;
                             for (Location location : response) {
-                                editor.put(location);
                                 if (location.hasAccuracy() && location.getAccuracy() != -1) {
                                     radius = Math.max(location.distanceTo(next), radius);
                                 }
                             }
-                            editor.end();
                             Log.d(TAG, "Downloaded " + response.size() + " APs at " + next
                                     .getLatitude() + "/" + next.getLongitude() + " near " +
                                     mapView.getMapCenter().getLatitude() + "/" + mapView
                                     .getMapCenter().getLongitude());
                             next.setAccuracy(radius);
-                            items.add(new WifiOverlayItem(next));
+                            synchronized (items) {
+                                items.add(new WifiOverlayItem(next));
+                                trimItems();
+                            }
                         } catch (IOException e) {
                             Log.w(TAG, e);
                         }
@@ -136,6 +159,30 @@ public class PregrabActivity extends Activity {
         myLocationOverlay.enableMyLocation();
     }
 
+    @Override
+    protected void onDestroy() {
+        coordinator.getMemoryBudget().unregister(overlayTier);
+        super.onDestroy();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        coordinator.getMemoryBudget().onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        coordinator.getMemoryBudget().onLowMemory();
+    }
+
+    private void trimItems() {
+        if (items.size() > overlayCapacity) {
+            items.subList(0, items.size() - overlayCapacity).clear();
+        }
+    }
+
     private class WifiOverlayItem {
         private GeoPoint point;
         private double latitude;
@@ -185,20 +232,22 @@ public class PregrabActivity extends Activity {
         protected void draw(Canvas c, MapView osmv, boolean shadow) {
             final int zoomDiff = mapView.getMaxZoomLevel() - mapView.getZoomLevel();
             Point pnt = new Point();
-            for (WifiOverlayItem item : items) {
-                mapView.getProjection().toPixels(item.point, pnt);
-                if (item.size == 0) {
-                    c.drawCircle(pnt.x, pnt.y, 20, errorPaint);
-                } else {
-                    float radius = (float) (item.size / TileSystem.GroundResolution(item.latitude,
-                            mapView.getZoomLevel()));
-                    circlePaint.setAlpha(50);
-                    circlePaint.setStyle(Paint.Style.FILL);
-                    c.drawCircle(pnt.x, pnt.y, radius, circlePaint);
-
-                    circlePaint.setAlpha(150);
-                    circlePaint.setStyle(Paint.Style.STROKE);
-                    c.drawCircle(pnt.x, pnt.y, radius, circlePaint);
+            synchronized (items) {
+                for (WifiOverlayItem item : items) {
+                    mapView.getProjection().toPixels(item.point, pnt);
+                    if (item.size == 0) {
+                        c.drawCircle(pnt.x, pnt.y, 20, errorPaint);
+                    } else {
+                        float radius = (float) (item.size / TileSystem.GroundResolution(item.latitude,
+                                mapView.getZoomLevel()));
+                        circlePaint.setAlpha(50);
+                        circlePaint.setStyle(Paint.Style.FILL);
+                        c.drawCircle(pnt.x, pnt.y, radius, circlePaint);
+
+                        circlePaint.setAlpha(150);
+                        circlePaint.setStyle(Paint.Style.STROKE);
+                        c.drawCircle(pnt.x, pnt.y, radius, circlePaint);
+                    }
                 }
             }
         }
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2013-2018 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.backend.apple;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * Flow control for requests to Apple.
+ * <p>
+ * Request rate and batch size are adjusted additive-increase / multiplicative-decrease: every
+ * fast successful request increases them a bit, slow requests decrease the rate, errors halve
+ * both and throttling responses cut them down to a quarter. In addition, the number of requests
+ * per hour is limited by a fixed budget.
+ */
+public class RateController {
+    public enum State {
+        /**
+         * Requests succeed, rate and batch size are increasing.
+         */
+        STEADY,
+        /**
+         * Last request was slow or failed.
+         */
+        BACKING_OFF,
+        /**
+         * Last request was rejected by the server.
+         */
+        THROTTLED,
+        /**
+         * The hourly budget is used up.
+         */
+        EXHAUSTED
+    }
+
+    private static final long ONE_HOUR = 60 * 60 * 1000;
+    private static final int DEFAULT_HOURLY_BUDGET = 240;
+    private static final double MIN_RATE = 1.0 / (5 * 60);
+    private static final double MAX_RATE = 1.0;
+    private static final double INITIAL_RATE = 1.0 / 10;
+    private static final double RATE_INCREASE = 0.02;
+    private static final int MIN_BATCH_SIZE = 1;
+    /**
+     * Batches start small and grow by {@link #BATCH_INCREASE} with each fast request, up to
+     * {@link LocationRetriever#MAX_MACS_PER_REQUEST}.
+     */
+    private static final int INITIAL_BATCH_SIZE = 20;
+    private static final int BATCH_INCREASE = 4;
+    private static final float LATENCY_EWMA_WEIGHT = 0.2F;
+    /**
+     * A request is slow, if it took this much longer than the fastest average seen.
+     */
+    private static final float SLOW_FACTOR = 2;
+
+    private final ArrayDeque<Long> requestTimes = new ArrayDeque<>();
+    private int hourlyBudget = DEFAULT_HOURLY_BUDGET;
+    private int maxBatchSize = LocationRetriever.MAX_MACS_PER_REQUEST;
+    private double rate = INITIAL_RATE;
+    private double batchSize = INITIAL_BATCH_SIZE;
+    private float latency = -1;
+    private float baseLatency = Float.MAX_VALUE;
+    private long lastRequest;
+    private long errorCount;
+    private long throttleCount;
+    private State state = State.STEADY;
+
+    public synchronized void setHourlyBudget(int hourlyBudget) {
+        this.hourlyBudget = hourlyBudget;
+    }
+
+    public synchronized void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+        batchSize = Math.min(batchSize, maxBatchSize);
+    }
+
+    private void expire(long now) {
+        while (!requestTimes.isEmpty() && now - requestTimes.peekFirst() > ONE_HOUR) {
+            requestTimes.pollFirst();
+        }
+    }
+
+    /**
+     * @return milliseconds until the next request is allowed, considering rate and budget
+     */
+    public synchronized long getDelay() {
+        long now = SystemClock.elapsedRealtime();
+        expire(now);
+        long delay = lastRequest == 0 ? 0 : Math.max(lastRequest + (long) (1000 / rate) - now, 0);
+        if (requestTimes.size() >= hourlyBudget) {
+            delay = Math.max(delay, requestTimes.peekFirst() + ONE_HOUR - now);
+        }
+        return delay;
+    }
+
+    /**
+     * Wait until the next request is allowed and account for it.
+     *
+     * @throws IOException if the hourly budget is used up or the thread was interrupted
+     */
+    public void acquire() throws IOException {
+        while (true) {
+            long delay;
+            synchronized (this) {
+                long now = SystemClock.elapsedRealtime();
+                expire(now);
+                if (requestTimes.size() >= hourlyBudget) {
+                    state = State.EXHAUSTED;
+                    throw new IOException("Hourly request budget of " + hourlyBudget + " used up");
+                }
+                delay = getDelay();
+                if (delay == 0) {
+                    lastRequest = now;
+                    requestTimes.addLast(now);
+                    return;
+                }
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for request slot");
+            }
+        }
+    }
+
+    /**
+     * Account for a request, if it is allowed right away.
+     *
+     * @return false if the request has to wait or the hourly budget is used up
+     */
+    public synchronized boolean tryAcquire() {
+        long now = SystemClock.elapsedRealtime();
+        expire(now);
+        if (requestTimes.size() >= hourlyBudget || getDelay() > 0) return false;
+        lastRequest = now;
+        requestTimes.addLast(now);
+        return true;
+    }
+
+    public synchronized void onSuccess(long latencyMillis) {
+        latency = latency < 0 ? latencyMillis : latency + LATENCY_EWMA_WEIGHT * (latencyMillis - latency);
+        baseLatency = Math.min(baseLatency, latency);
+        if (latencyMillis > baseLatency * SLOW_FACTOR) {
+            rate = Math.max(rate * 0.75, MIN_RATE);
+            state = State.BACKING_OFF;
+        } else {
+            rate = Math.min(rate + RATE_INCREASE, MAX_RATE);
+            batchSize = Math.min(batchSize + BATCH_INCREASE, maxBatchSize);
+            state = State.STEADY;
+        }
+    }
+
+    /**
+     * @param throttled true if the server signaled overload, e.g. with HTTP status 429 or 503
+     */
+    public synchronized void onError(boolean throttled) {
+        double factor = throttled ? 0.25 : 0.5;
+        rate = Math.max(rate * factor, MIN_RATE);
+        batchSize = Math.max(batchSize * factor, MIN_BATCH_SIZE);
+        if (throttled) {
+            throttleCount++;
+            state = State.THROTTLED;
+        } else {
+            errorCount++;
+            state = State.BACKING_OFF;
+        }
+    }
+
+    public synchronized int getBatchSize() {
+        return (int) batchSize;
+    }
+
+    /**
+     * @return current request rate in requests per minute
+     */
+    public synchronized double getRatePerMinute() {
+        return rate * 60;
+    }
+
+    public synchronized int getRemainingBudget() {
+        expire(SystemClock.elapsedRealtime());
+        return hourlyBudget - requestTimes.size();
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "state=" + state + " rate=" + String.format("%.2f", rate * 60) + "/min batch=" +
+                (int) batchSize + " budget=" + getRemainingBudget() + "/" + hourlyBudget +
+                " latency=" + Math.round(latency) + "ms errors=" + errorCount +
+                " throttled=" + throttleCount;
+    }
+}
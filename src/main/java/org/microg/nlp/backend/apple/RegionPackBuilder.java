@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2013-2018 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.backend.apple;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.location.Location;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+
+import org.microg.nlp.api.LocationHelper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the frequently visited regions fully resolved and fresh, so positioning there doesn't
+ * need the network.
+ * <p>
+ * Fixes are counted per region cell of {@link #REGION_SIZE} degrees, at most once per
+ * {@link #VISIT_INTERVAL} and cell. When the device is plugged in or connects to a network, and
+ * it is charging and on an unmetered network, at most once per {@link #RUN_INTERVAL}, the most
+ * visited cells are swept: the known access points of each cell are loaded at once, a grid of
+ * sample points is checked against them, and the nearest access point of every point that is not
+ * covered by fresh data is requested, so Apple returns its surroundings. All other stale access
+ * points of the cell are requested after them, oldest first, in batches of up to
+ * {@link LocationRetriever#MAX_MACS_PER_REQUEST}. A sweep makes at most {@link #REQUEST_BUDGET}
+ * requests, stale access points left over are refreshed by the next sweep.
+ */
+public class RegionPackBuilder {
+    private static final String TAG = "AppleNlpRegionPack";
+    private static final String PREFS_NAME = "region_pack";
+    private static final String PREF_LAST_RUN = "last_run";
+
+    private static final double REGION_SIZE = 0.02;
+    private static final int GRID_STEPS = 8;
+    private static final long VISIT_INTERVAL = 10 * 60 * 1000;
+    private static final long RUN_INTERVAL = 24 * 60 * 60 * 1000;
+    private static final int MAX_REGIONS = 3;
+    private static final int MIN_VISITS = 6;
+    /**
+     * Requests per sweep, over all regions.
+     */
+    private static final int REQUEST_BUDGET = 50;
+    /**
+     * A sample point is covered, if a known access point is within this distance.
+     */
+    private static final float COVERED_DISTANCE = 150;
+    /**
+     * Shorter than the refresh age used by {@link BackendService}, so data in home regions is
+     * refreshed here before positioning would refresh it.
+     */
+    private static final long FRESH_AGE = 1000L * 60 * 60 * 24 * 20;
+    /**
+     * Access points this far outside of a cell still cover its border points.
+     */
+    private static final double CELL_MARGIN = COVERED_DISTANCE / 6371000D * 180 / Math.PI;
+
+    private final Context context;
+    private final WifiLocationDatabase database;
+    private final RetrievalCoordinator coordinator;
+    private final Map<Long, String> coverage = new LinkedHashMap<>();
+    private long lastVisitCell = Long.MIN_VALUE;
+    private long lastVisitTime;
+    private Thread thread;
+    private int requestsUsed;
+    private boolean started;
+    private final BroadcastReceiver triggerReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            maybeStart();
+        }
+    };
+
+    public RegionPackBuilder(Context context, WifiLocationDatabase database,
+                             RetrievalCoordinator coordinator) {
+        this.context = context;
+        this.database = database;
+        this.coordinator = coordinator;
+    }
+
+    private static long cellKey(double latitude, double longitude) {
+        return ((long) Math.floor(latitude / REGION_SIZE) << 32) |
+                ((long) Math.floor(longitude / REGION_SIZE) & 0xffffffffL);
+    }
+
+    private static double cellLatitude(long cell) {
+        return (int) (cell >> 32) * REGION_SIZE;
+    }
+
+    private static double cellLongitude(long cell) {
+        return (int) cell * REGION_SIZE;
+    }
+
+    public void onFix(Location location) {
+        long cell = cellKey(location.getLatitude(), location.getLongitude());
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (cell == lastVisitCell && now - lastVisitTime < VISIT_INTERVAL) return;
+            lastVisitCell = cell;
+            lastVisitTime = now;
+        }
+        database.recordVisit(cell, now);
+    }
+
+    /**
+     * Listen for the device being plugged in or connecting to a network, and start a sweep right
+     * away if one is due.
+     */
+    public void start() {
+        synchronized (this) {
+            if (started) return;
+            started = true;
+        }
+        IntentFilter filter = new IntentFilter(Intent.ACTION_POWER_CONNECTED);
+        filter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
+        context.registerReceiver(triggerReceiver, filter);
+        maybeStart();
+    }
+
+    private SharedPreferences getPreferences() {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    public long getLastRun() {
+        return getPreferences().getLong(PREF_LAST_RUN, 0);
+    }
+
+    public long getNextRun() {
+        return getLastRun() + RUN_INTERVAL;
+    }
+
+    private boolean isCharging() {
+        Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    private boolean isUnmetered() {
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info = cm.getActiveNetworkInfo();
+        if (info == null || !info.isConnected()) return false;
+        if (Build.VERSION.SDK_INT >= 16) return !cm.isActiveNetworkMetered();
+        return info.getType() == ConnectivityManager.TYPE_WIFI;
+    }
+
+    private boolean canRun() {
+        return database.isReady() && isCharging() && isUnmetered();
+    }
+
+    /**
+     * Start a sweep in the background, if it is due and the device is charging and on an
+     * unmetered network.
+     */
+    public synchronized void maybeStart() {
+        if (!started || thread != null || System.currentTimeMillis() < getNextRun() || !canRun()) return;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    sweep();
+                } finally {
+                    synchronized (RegionPackBuilder.this) {
+                        thread = null;
+                    }
+                }
+            }
+        }, "AppleNlpRegionPack");
+        thread.start();
+    }
+
+    public void stop() {
+        boolean registered;
+        synchronized (this) {
+            registered = started;
+            started = false;
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+        if (registered) context.unregisterReceiver(triggerReceiver);
+    }
+
+    private void sweep() {
+        synchronized (this) {
+            requestsUsed = 0;
+            coverage.clear();
+        }
+        for (long[] region : database.getTopRegions(MAX_REGIONS, MIN_VISITS)) {
+            if (!sweepRegion(region[0])) {
+                // Not stored as run, so the next trigger tries again
+                Log.d(TAG, "Sweep aborted after " + requestsUsed + " requests");
+                return;
+            }
+        }
+        getPreferences().edit().putLong(PREF_LAST_RUN, System.currentTimeMillis()).apply();
+        Log.d(TAG, "Sweep done after " + requestsUsed + " requests");
+    }
+
+    /**
+     * @return false if the sweep has to be aborted, true if the region is done or the request
+     * budget is used up
+     */
+    private boolean sweepRegion(long cell) {
+        double step = REGION_SIZE / GRID_STEPS;
+        double marginLon = CELL_MARGIN / Math.cos(Math.toRadians(cellLatitude(cell) + REGION_SIZE / 2));
+        List<Location> known = database.getInArea(cellLatitude(cell) - CELL_MARGIN,
+                cellLongitude(cell) - marginLon, cellLatitude(cell) + REGION_SIZE + CELL_MARGIN,
+                cellLongitude(cell) + REGION_SIZE + marginLon);
+        long freshTime = System.currentTimeMillis() - FRESH_AGE;
+        int covered = 0, points = 0;
+        Set<String> seeds = new LinkedHashSet<>();
+        for (int i = 0; i < GRID_STEPS; i++) {
+            for (int j = 0; j < GRID_STEPS; j++) {
+                points++;
+                Location point = LocationHelper.create("grid", cellLatitude(cell) + (i + 0.5) * step,
+                        cellLongitude(cell) + (j + 0.5) * step, 0);
+                Location nearest = null;
+                float nearestDistance = Float.MAX_VALUE;
+                boolean fresh = false;
+                for (Location location : known) {
+                    float distance = location.distanceTo(point);
+                    if (distance < COVERED_DISTANCE && location.getTime() > freshTime) {
+                        fresh = true;
+                        break;
+                    }
+                    if (distance < nearestDistance) {
+                        nearest = location;
+                        nearestDistance = distance;
+                    }
+                }
+                if (fresh) {
+                    covered++;
+                } else if (nearest != null) {
+                    // Request the nearest access point, even if it is stale
+                    seeds.add(nearest.getExtras().getString(LocationRetriever.EXTRA_MAC_ADDRESS));
+                }
+            }
+        }
+        setCoverage(cell, covered, points);
+        List<Location> stale = new ArrayList<>();
+        for (Location location : known) {
+            if (location.getTime() <= freshTime && isInCell(location, cell)) stale.add(location);
+        }
+        Collections.sort(stale, new Comparator<Location>() {
+            @Override
+            public int compare(Location lhs, Location rhs) {
+                long lhsTime = lhs.getTime(), rhsTime = rhs.getTime();
+                return lhsTime < rhsTime ? -1 : (lhsTime == rhsTime ? 0 : 1);
+            }
+        });
+        for (Location location : stale) {
+            seeds.add(location.getExtras().getString(LocationRetriever.EXTRA_MAC_ADDRESS));
+        }
+        List<String> seedList = new ArrayList<>(seeds);
+        for (int i = 0; i < seedList.size(); i += LocationRetriever.MAX_MACS_PER_REQUEST) {
+            synchronized (this) {
+                // The rest is still stale on the next sweep
+                if (requestsUsed >= REQUEST_BUDGET) return true;
+                requestsUsed++;
+            }
+            if (Thread.interrupted() || !canRun()) return false;
+            try {
+                coordinator.retrieve(seedList.subList(i, Math.min(i + LocationRetriever.MAX_MACS_PER_REQUEST,
+                        seedList.size())), null);
+            } catch (IOException e) {
+                Log.w(TAG, e);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isInCell(Location location, long cell) {
+        return cellKey(location.getLatitude(), location.getLongitude()) == cell;
+    }
+
+    private synchronized void setCoverage(long cell, int covered, int points) {
+        coverage.put(cell, String.format("%.3f/%.3f %d/%d", cellLatitude(cell),
+                cellLongitude(cell), covered, points));
+    }
+
+    /**
+     * @return human readable status of schedule, budget and coverage of the last sweep
+     */
+    public synchronized String getStatus() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("running=").append(thread != null)
+                .append(" lastRun=").append(getLastRun())
+                .append(" nextRun=").append(getNextRun())
+                .append(" requests=").append(requestsUsed).append("/").append(REQUEST_BUDGET);
+        for (String regionCoverage : coverage.values()) {
+            sb.append("\n  region ").append(regionCoverage);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2013-2018 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.backend.apple;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Tracks access points that move or don't fit their surroundings, like mobile hotspots, Wi-Fi
+ * in buses or relocated routers.
+ * <p>
+ * Each access point has a penalty score: disagreeing with the cluster chosen for a fix adds
+ * {@link #DISAGREE_PENALTY}, agreeing removes {@link #AGREE_BONUS}, and a position jump between
+ * two retrievals adds {@link #JUMP_PENALTY}. The score decays by one per day, so relocated
+ * routers are used again after a while. Access points with a score of at least
+ * {@link #UNRELIABLE_SCORE} are unreliable. A fix is recalculated several times while data
+ * arrives, only the final fix of each scan gives verdicts.
+ * <p>
+ * Scores are kept in an open addressing hash map of primitive arrays.
+ */
+public class ReliabilityIndex {
+    static final int FILE_MAGIC = 0x41524931;
+    private static final float DISAGREE_PENALTY = 1;
+    private static final float AGREE_BONUS = 0.5F;
+    private static final float JUMP_PENALTY = 3;
+    private static final float UNRELIABLE_SCORE = 4;
+    private static final long ONE_DAY = 24 * 60 * 60 * 1000;
+    static final int MAX_SIZE = 16384;
+
+    // Keys are MAC + 1, so 0 marks a free slot
+    private long[] keys = new long[256];
+    private float[] scores = new float[256];
+    private long[] updated = new long[256];
+    private int size;
+
+    private static long key(String mac) {
+        long value = WifiLocationCache.macToLong(mac);
+        return value == -1 ? 0 : value + 1;
+    }
+
+    private int slot(long key) {
+        int mask = keys.length - 1;
+        int i = (int) (key ^ (key >>> 32)) * 0x9E3779B9 & mask;
+        while (keys[i] != 0 && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private float decayed(int i, long now) {
+        return Math.max(scores[i] - (float) (now - updated[i]) / ONE_DAY, 0);
+    }
+
+    public synchronized float getScore(String mac) {
+        long key = key(mac);
+        if (key == 0 || size == 0) return 0;
+        int i = slot(key);
+        return keys[i] == 0 ? 0 : decayed(i, System.currentTimeMillis());
+    }
+
+    public boolean isUnreliable(String mac) {
+        return getScore(mac) >= UNRELIABLE_SCORE;
+    }
+
+    /**
+     * The access point is part of the cluster a fix was calculated from.
+     */
+    public void onAgree(String mac) {
+        adjust(mac, -AGREE_BONUS);
+    }
+
+    /**
+     * The access point is outside of the cluster a fix was calculated from.
+     */
+    public void onDisagree(String mac) {
+        adjust(mac, DISAGREE_PENALTY);
+    }
+
+    /**
+     * The retrieved position of the access point moved far away from the stored one.
+     */
+    public void onJump(String mac) {
+        adjust(mac, JUMP_PENALTY);
+    }
+
+    /**
+     * Change the score of the access point, never below zero.
+     */
+    private synchronized void adjust(String mac, float delta) {
+        long key = key(mac);
+        if (key == 0) return;
+        long now = System.currentTimeMillis();
+        int i = slot(key);
+        if (keys[i] == 0) {
+            if (delta <= 0) return;
+            if (size >= MAX_SIZE) {
+                resize(keys.length, now);
+                if (size >= MAX_SIZE) return;
+                i = slot(key);
+            }
+            if ((size + 1) * 2 > keys.length) {
+                resize(keys.length * 2, now);
+                i = slot(key);
+            }
+            keys[i] = key;
+            size++;
+            scores[i] = delta;
+        } else {
+            scores[i] = Math.max(decayed(i, now) + delta, 0);
+        }
+        updated[i] = now;
+    }
+
+    /**
+     * Rehash into arrays of the given capacity, dropping entries that decayed to below one.
+     */
+    private void resize(int capacity, long now) {
+        long[] oldKeys = keys;
+        float[] oldScores = scores;
+        long[] oldUpdated = updated;
+        keys = new long[capacity];
+        scores = new float[capacity];
+        updated = new long[capacity];
+        size = 0;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] == 0) continue;
+            float score = Math.max(oldScores[j] - (float) (now - oldUpdated[j]) / ONE_DAY, 0);
+            if (score < 1) continue;
+            int i = slot(oldKeys[j]);
+            keys[i] = oldKeys[j];
+            scores[i] = score;
+            updated[i] = now;
+            size++;
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return number of access points currently considered unreliable
+     */
+    public synchronized int getUnreliableCount() {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0 && decayed(i, now) >= UNRELIABLE_SCORE) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Write all scores to a temporary file, then replace the given file with it.
+     */
+    public synchronized void write(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(temp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+        try {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(size);
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == 0) continue;
+                out.writeLong(keys[i]);
+                out.writeFloat(scores[i]);
+                out.writeLong(updated[i]);
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    /**
+     * @return number of entries read
+     */
+    public synchronized int read(File file) throws IOException {
+        if (!file.exists()) return 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != FILE_MAGIC) return 0;
+            int count = in.readInt();
+            int capacity = keys.length;
+            while (capacity < Math.min(count, MAX_SIZE) * 2) capacity *= 2;
+            if (capacity > keys.length) resize(capacity, System.currentTimeMillis());
+            int read = 0;
+            for (int j = 0; j < count; j++) {
+                long key = in.readLong();
+                float score = in.readFloat();
+                long time = in.readLong();
+                if (key == 0 || size >= MAX_SIZE) continue;
+                int i = slot(key);
+                if (keys[i] == 0) size++;
+                keys[i] = key;
+                scores[i] = score;
+                updated[i] = time;
+                read++;
+            }
+            return read;
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "tracked=" + size() + " unreliable=" + getUnreliableCount();
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright (C) 2013-2018 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.backend.apple;
+
+import android.content.Context;
+import android.location.Location;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.microg.nlp.api.LocationHelper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide entry point for retrieving wifi locations.
+ * <p>
+ * Concurrent requests for the same MAC address are merged into a single in-flight lookup, so the
+ * backend service and the pregrab activity never ask Apple for the same access point twice at
+ * the same time. Both share the same {@link WifiLocationDatabase} instance, and therefore the
+ * same connection pool.
+ */
+public class RetrievalCoordinator {
+    private static final String TAG = "AppleNlpRetrieval";
+    /**
+     * Callers joining a request of another caller give up after this long, in case it never
+     * completes.
+     */
+    private static final long JOIN_TIMEOUT = 2 * 60 * 1000;
+    private static RetrievalCoordinator instance;
+
+    private final WifiLocationDatabase database;
+    private final MemoryBudget memoryBudget;
+    private final LocationRetriever retriever = new LocationRetriever();
+    private final RateController rateController = new RateController();
+    private final Map<String, PendingLocation> inFlight = new HashMap<>();
+    private final AtomicLong requestedCount = new AtomicLong();
+    private final AtomicLong suppressedCount = new AtomicLong();
+    private final AtomicLong networkRequestCount = new AtomicLong();
+    private volatile WifiLocationDatabase.IngestResult lastIngest;
+    private volatile long lastBlockedMillis;
+
+    private RetrievalCoordinator(Context context) {
+        retriever.setRateController(rateController);
+        database = new WifiLocationDatabase(context);
+        memoryBudget = new MemoryBudget(context);
+        // Before the snapshot is loaded, so it is loaded only up to the budget
+        memoryBudget.register("cache", database.getCache(), 0.6F, 200, 256, 65536);
+        database.openAsync();
+    }
+
+    public static synchronized RetrievalCoordinator getInstance(Context context) {
+        if (instance == null) {
+            instance = new RetrievalCoordinator(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    public WifiLocationDatabase getDatabase() {
+        return database;
+    }
+
+    /**
+     * @return budget for in-process data, shared by all components
+     */
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public LocationRetriever getRetriever() {
+        return retriever;
+    }
+
+    public RateController getRateController() {
+        return rateController;
+    }
+
+    /**
+     * Retrieve the locations of the given MAC addresses and store them in the database.
+     * <p>
+     * MAC addresses already in flight for another caller are not requested again, instead this
+     * call waits for the other request to finish. MAC addresses unknown to Apple are stored as
+     * unknown, so they are not requested again until they are stale.
+     *
+     * @param macs     the MAC addresses to retrieve
+     * @param listener optional listener, called for every chunk of locations as soon as it is
+     *                 available
+     * @return all locations retrieved, including neighbouring access points from the response
+     */
+    public Collection<Location> retrieve(Collection<String> macs, Listener listener)
+            throws IOException {
+        return retrieve(macs, listener, null, false);
+    }
+
+    /**
+     * Like {@link #retrieve(Collection, Listener)}, but a failed request of another caller does
+     * not fail this call. Only a failure of the request made for this caller is thrown.
+     *
+     * @param unresolved optional collection receiving the MAC addresses that were in flight for
+     *                   another caller whose request failed, they are still unknown
+     * @param hedgeable  whether the request may be hedged, only for requests a fix is waiting
+     *                   for, see {@link LocationRetriever#retrieveLocations(String[],
+     *                   LocationRetriever.Sink, boolean)}
+     */
+    public Collection<Location> retrieve(Collection<String> macs, Listener listener,
+                                         Collection<String> unresolved, boolean hedgeable)
+            throws IOException {
+        List<String> own = new ArrayList<>();
+        Map<String, PendingLocation> joined = new HashMap<>();
+        synchronized (inFlight) {
+            for (String mac : macs) {
+                requestedCount.incrementAndGet();
+                PendingLocation pending = inFlight.get(mac);
+                if (pending != null) {
+                    suppressedCount.incrementAndGet();
+                    joined.put(mac, pending);
+                } else {
+                    inFlight.put(mac, new PendingLocation());
+                    own.add(mac);
+                }
+            }
+        }
+        if (!joined.isEmpty()) {
+            Log.d(TAG, "Suppressed " + joined.size() + " duplicate requests");
+        }
+
+        List<Location> result = new ArrayList<>();
+        if (!own.isEmpty()) {
+            result.addAll(fetch(own, listener, hedgeable));
+        }
+        List<Location> joinedLocations = new ArrayList<>();
+        for (Map.Entry<String, PendingLocation> entry : joined.entrySet()) {
+            try {
+                Location location = entry.getValue().get();
+                if (location != null) joinedLocations.add(location);
+            } catch (IOException e) {
+                // Our own request went fine, the other caller retries its failure itself
+                Log.d(TAG, "Joined request for " + entry.getKey() + " failed: " + e);
+                if (unresolved != null) unresolved.add(entry.getKey());
+            }
+        }
+        if (listener != null && !joinedLocations.isEmpty()) {
+            listener.onLocationsRetrieved(joinedLocations);
+        }
+        result.addAll(joinedLocations);
+        return result;
+    }
+
+    /**
+     * Request the given MAC addresses. Locations are stored and handed to waiting callers and
+     * the listener chunk by chunk, while the response is still arriving.
+     */
+    private Collection<Location> fetch(final List<String> macs, final Listener listener,
+                                       boolean hedgeable) throws IOException {
+        final StreamingIngest ingest = new StreamingIngest(database);
+        final Map<String, Location> byMac = new HashMap<>();
+        final List<Location> result = new ArrayList<>();
+        LocationRetriever.Sink sink = new LocationRetriever.Sink() {
+            @Override
+            public void onLocations(List<Location> chunk) throws IOException {
+                ingest.write(chunk);
+                synchronized (byMac) {
+                    for (Location location : chunk) {
+                        byMac.put(location.getExtras().getString(
+                                LocationRetriever.EXTRA_MAC_ADDRESS), location);
+                    }
+                    result.addAll(chunk);
+                }
+                complete(chunk);
+                if (listener != null) listener.onLocationsRetrieved(chunk);
+            }
+        };
+        boolean completed = false;
+        try {
+            rateController.acquire();
+            networkRequestCount.incrementAndGet();
+            long start = SystemClock.elapsedRealtime();
+            try {
+                retriever.retrieveLocations(macs.toArray(new String[macs.size()]), sink,
+                        hedgeable);
+            } catch (IOException e) {
+                rateController.onError(e instanceof LocationRetriever.StatusException &&
+                        ((LocationRetriever.StatusException) e).isThrottled());
+                throw e;
+            }
+            rateController.onSuccess(SystemClock.elapsedRealtime() - start);
+            lastIngest = ingest.finish();
+            lastBlockedMillis = ingest.getBlockedMillis();
+
+            List<Location> unknown = new ArrayList<>();
+            for (String mac : macs) {
+                if (!byMac.containsKey(mac)) {
+                    Location location = createUnknown(mac);
+                    unknown.add(location);
+                    byMac.put(mac, location);
+                }
+            }
+            if (!unknown.isEmpty()) database.ingest(unknown);
+
+            synchronized (inFlight) {
+                for (String mac : macs) {
+                    inFlight.remove(mac).complete(byMac.get(mac));
+                }
+            }
+            completed = true;
+        } catch (IOException e) {
+            failAll(macs, e);
+            throw e;
+        } catch (RuntimeException e) {
+            // e.g. malformed MAC addresses in the response or a failed database write
+            failAll(macs, new IOException(e));
+            throw e;
+        } finally {
+            // Never leave joined callers waiting, whatever went wrong
+            if (!completed) failAll(macs, new IOException("Retrieval aborted"));
+        }
+        return result;
+    }
+
+    /**
+     * Complete in-flight requests for the given locations. Neighbours in a response may resolve
+     * requests of other callers early.
+     */
+    private void complete(List<Location> locations) {
+        synchronized (inFlight) {
+            for (Location location : locations) {
+                PendingLocation pending = inFlight.get(location.getExtras()
+                        .getString(LocationRetriever.EXTRA_MAC_ADDRESS));
+                if (pending != null) pending.complete(location);
+            }
+        }
+    }
+
+    private void failAll(List<String> macs, IOException e) {
+        synchronized (inFlight) {
+            for (String mac : macs) {
+                PendingLocation pending = inFlight.remove(mac);
+                if (pending != null) pending.fail(e);
+            }
+        }
+    }
+
+    private static Location createUnknown(String mac) {
+        Bundle extras = new Bundle();
+        extras.putString(LocationRetriever.EXTRA_MAC_ADDRESS, mac);
+        return LocationHelper.create("unknown", System.currentTimeMillis(), extras);
+    }
+
+    /**
+     * Store the given MAC addresses as unknown without asking Apple, so they are not requested
+     * again until they are stale.
+     */
+    public void storeUnknown(Collection<String> macs) {
+        List<Location> unknown = new ArrayList<>(macs.size());
+        for (String mac : macs) {
+            unknown.add(createUnknown(mac));
+        }
+        database.ingest(unknown);
+    }
+
+    public long getRequestedCount() {
+        return requestedCount.get();
+    }
+
+    /**
+     * @return number of MAC addresses that were not requested, because they were already in flight
+     */
+    public long getSuppressedCount() {
+        return suppressedCount.get();
+    }
+
+    public long getNetworkRequestCount() {
+        return networkRequestCount.get();
+    }
+
+    public WifiLocationDatabase.IngestResult getLastIngest() {
+        return lastIngest;
+    }
+
+    /**
+     * @return time the last retrieval waited for the database writer to catch up
+     */
+    public long getLastBlockedMillis() {
+        return lastBlockedMillis;
+    }
+
+    public int getInFlightCount() {
+        synchronized (inFlight) {
+            return inFlight.size();
+        }
+    }
+
+    public interface Listener {
+        /**
+         * Called once per chunk of the response, on the thread reading it.
+         */
+        void onLocationsRetrieved(List<Location> locations);
+    }
+
+    /**
+     * Result of a lookup that is currently in flight. Completes exactly once.
+     */
+    private static class PendingLocation {
+        private boolean done;
+        private Location location;
+        private IOException exception;
+
+        synchronized void complete(Location location) {
+            if (done) return;
+            this.location = location;
+            done = true;
+            notifyAll();
+        }
+
+        synchronized void fail(IOException exception) {
+            if (done) return;
+            this.exception = exception;
+            done = true;
+            notifyAll();
+        }
+
+        synchronized Location get() throws IOException {
+            long deadline = SystemClock.elapsedRealtime() + JOIN_TIMEOUT;
+            while (!done) {
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                if (remaining <= 0) throw new IOException("Timeout waiting for in-flight request");
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for in-flight request");
+                }
+            }
+            if (exception != null) throw new IOException(exception);
+            return location;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2013-2018 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.backend.apple;
+
+import android.util.Log;
+
+import java.util.Set;
+
+import static org.microg.nlp.api.WiFiBackendHelper.WiFi;
+
+/**
+ * Processes scans on a dedicated worker thread, off the thread delivering them.
+ * <p>
+ * Only the latest scan is kept: a scan that was not started yet is replaced by a newer one,
+ * as its result would be outdated anyway.
+ */
+public class ScanProcessor {
+    private static final String TAG = "AppleNlpScanProcessor";
+
+    private final Processor processor;
+    private final LatencyHistogram queueTime = new LatencyHistogram();
+    private final LatencyHistogram processingTime = new LatencyHistogram();
+    private Set<WiFi> pending;
+    private long pendingSince;
+    private Thread worker;
+    /**
+     * Worker of before the last {@link #stop()}, it may still be processing a scan.
+     */
+    private Thread stopped;
+    private long submittedCount;
+    private long coalescedCount;
+
+    public ScanProcessor(Processor processor) {
+        this.processor = processor;
+    }
+
+    public synchronized void start() {
+        if (worker != null) return;
+        final Thread previous = stopped;
+        stopped = null;
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // Never process two scans at once, even right after a restart
+                if (awaitFinished(previous)) ScanProcessor.this.run();
+            }
+        }, "AppleNlpScanProcessor");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public synchronized void stop() {
+        if (worker != null) {
+            worker.interrupt();
+            stopped = worker;
+            worker = null;
+        }
+        pending = null;
+    }
+
+    /**
+     * Wait for the given worker to finish, even if interrupted, so a worker waiting for this
+     * one also waits for all before.
+     *
+     * @return false if interrupted while waiting
+     */
+    private static boolean awaitFinished(Thread previous) {
+        boolean interrupted = false;
+        while (previous != null && previous.isAlive()) {
+            try {
+                previous.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        return !interrupted;
+    }
+
+    /**
+     * Queue the scan for processing, replacing a queued scan that was not started yet.
+     */
+    public synchronized void submit(Set<WiFi> wiFis) {
+        submittedCount++;
+        if (pending != null) {
+            coalescedCount++;
+        }
+        pending = wiFis;
+        pendingSince = System.nanoTime();
+        notifyAll();
+    }
+
+    private void run() {
+        while (true) {
+            Set<WiFi> wiFis;
+            synchronized (this) {
+                while (pending == null) {
+                    if (worker != Thread.currentThread()) return;
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (worker != Thread.currentThread()) return;
+                wiFis = pending;
+                pending = null;
+                queueTime.record(System.nanoTime() - pendingSince);
+            }
+            long start = System.nanoTime();
+            try {
+                processor.process(wiFis);
+            } catch (RuntimeException e) {
+                Log.w(TAG, e);
+            }
+            processingTime.record(System.nanoTime() - start);
+        }
+    }
+
+    public synchronized long getSubmittedCount() {
+        return submittedCount;
+    }
+
+    /**
+     * @return number of scans dropped, because a newer scan arrived before they were started
+     */
+    public synchronized long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    public LatencyHistogram getQueueTime() {
+        return queueTime;
+    }
+
+    public LatencyHistogram getProcessingTime() {
+        return processingTime;
+    }
+
+    public interface Processor {
+        void process(Set<WiFi> wiFis);
+    }
+}
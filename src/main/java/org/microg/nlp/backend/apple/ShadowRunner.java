@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2013-2018 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.backend.apple;
+
+import android.location.Location;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs candidate calculators on the same input as the primary one, to compare them on live scans.
+ * <p>
+ * Candidates run on a single thread of lowest priority, with their own copies of the locations,
+ * so they can neither change the input of the primary calculator nor delay it. Only every
+ * {@link #SAMPLE_INTERVAL}th scan is used, and scans arriving while candidates are still
+ * running are skipped. Candidates must not have side effects like database writes.
+ */
+public class ShadowRunner {
+    private static final String TAG = "AppleNlpShadow";
+    private static final int SAMPLE_INTERVAL = 4;
+
+    private final List<Candidate> candidates = new ArrayList<>();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                    r.run();
+                }
+            }, "AppleNlpShadow");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private boolean running;
+    private long scanCount;
+    private long skippedCount;
+
+    public synchronized void addCandidate(String name, LocationCalculator calculator) {
+        candidates.add(new Candidate(name, calculator));
+    }
+
+    /**
+     * Run the candidates on a copy of the given locations, in the background.
+     *
+     * @param primary fix of the primary calculator for these locations, might be null
+     */
+    public void submit(Collection<Location> locations, final Location primary) {
+        final List<Candidate> candidates;
+        synchronized (this) {
+            if (this.candidates.isEmpty() || scanCount++ % SAMPLE_INTERVAL != 0) return;
+            if (running) {
+                skippedCount++;
+                return;
+            }
+            running = true;
+            candidates = new ArrayList<>(this.candidates);
+        }
+        final List<Location> copy = new ArrayList<>(locations.size());
+        for (Location location : locations) {
+            Location clone = new Location(location);
+            clone.setExtras(new Bundle(location.getExtras()));
+            copy.add(clone);
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (Candidate candidate : candidates) {
+                        candidate.run(copy, primary);
+                    }
+                } finally {
+                    synchronized (ShadowRunner.this) {
+                        running = false;
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("scans=").append(scanCount).append(" skipped=").append(skippedCount);
+        for (Candidate candidate : candidates) {
+            sb.append("\n  ").append(candidate);
+        }
+        return sb.toString();
+    }
+
+    private static class Candidate {
+        private final String name;
+        private final LocationCalculator calculator;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private long runs;
+        private long failures;
+        private long allocations;
+        private long allocatedBytes;
+        private long bothFixed;
+        private long onlyPrimary;
+        private long onlyCandidate;
+        private double distanceSum;
+        private float maxDistance;
+
+        private Candidate(String name, LocationCalculator calculator) {
+            this.name = name;
+            this.calculator = calculator;
+        }
+
+        @SuppressWarnings("deprecation")
+        private void run(List<Location> locations, Location primary) {
+            // Each candidate gets a fresh set, in case it changes extras
+            Set<Location> input = new HashSet<>();
+            for (Location location : locations) {
+                Location clone = new Location(location);
+                clone.setExtras(new Bundle(location.getExtras()));
+                input.add(clone);
+            }
+            Location result;
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            Debug.startAllocCounting();
+            long start = System.nanoTime();
+            try {
+                result = calculator.calculate(input);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Candidate " + name + " failed", e);
+                synchronized (this) {
+                    failures++;
+                }
+                return;
+            } finally {
+                Debug.stopAllocCounting();
+            }
+            latency.record(System.nanoTime() - start);
+            synchronized (this) {
+                runs++;
+                allocations += Debug.getThreadAllocCount();
+                allocatedBytes += Debug.getThreadAllocSize();
+                if (primary != null && result != null) {
+                    bothFixed++;
+                    float distance = primary.distanceTo(result);
+                    distanceSum += distance;
+                    maxDistance = Math.max(maxDistance, distance);
+                } else if (primary != null) {
+                    onlyPrimary++;
+                } else if (result != null) {
+                    onlyCandidate++;
+                }
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            return name + ": runs=" + runs + " failures=" + failures +
+                    " latency=" + latency +
+                    " allocations/run=" + (runs == 0 ? 0 : allocations / runs) +
+                    " bytes/run=" + (runs == 0 ? 0 : allocatedBytes / runs) +
+                    " bothFixed=" + bothFixed + " onlyPrimary=" + onlyPrimary +
+                    " onlyCandidate=" + onlyCandidate +
+                    " meanDistance=" + (bothFixed == 0 ? 0 : Math.round(distanceSum / bothFixed)) + "m" +
+                    " maxDistance=" + Math.round(maxDistance) + "m";
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2013-2018 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.backend.apple;
+
+/**
+ * Reference counted handle to resources used by several threads.
+ * <p>
+ * The owner holds the first reference. Users {@link #acquire()} a reference before using the
+ * value and {@link #release()} it afterwards. After {@link #close()}, no new references are
+ * handed out and the value is closed as soon as the last user released its reference, so work
+ * in progress is finished instead of failing on closed resources.
+ */
+public class SharedHandle<T> {
+    private final T value;
+    private final Closer<T> closer;
+    private int references = 1;
+    private boolean closing;
+
+    public SharedHandle(T value, Closer<T> closer) {
+        this.value = value;
+        this.closer = closer;
+    }
+
+    /**
+     * @return false if the handle is closing, the value must not be used then
+     */
+    public synchronized boolean acquire() {
+        if (closing) return false;
+        references++;
+        return true;
+    }
+
+    public T get() {
+        return value;
+    }
+
+    public void release() {
+        boolean last;
+        synchronized (this) {
+            if (references == 0) throw new IllegalStateException("Released more often than acquired");
+            last = --references == 0;
+        }
+        // Closed on the thread that finished last, outside of the lock
+        if (last) closer.close(value);
+    }
+
+    /**
+     * Release the owner's reference. Must only be called once.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closing) throw new IllegalStateException("Already closed");
+            closing = true;
+        }
+        release();
+    }
+
+    /**
+     * @return number of references held, including the owner's until closed
+     */
+    public synchronized int getReferenceCount() {
+        return references;
+    }
+
+    public interface Closer<T> {
+        void close(T value);
+    }
+}
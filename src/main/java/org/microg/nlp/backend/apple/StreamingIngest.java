@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2013-2018 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.backend.apple;
+
+import android.location.Location;
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Writer stage of a streaming retrieval: chunks are committed in their own transaction on the
+ * database writer thread, while the next chunks are still being decoded.
+ * <p>
+ * At most {@link #MAX_PENDING_CHUNKS} chunks may wait for the writer. When the writer falls
+ * behind, {@link #write(Collection)} blocks, which stops reading from the socket until the
+ * writer caught up.
+ */
+public class StreamingIngest {
+    private static final int MAX_PENDING_CHUNKS = 3;
+
+    private final WifiLocationDatabase database;
+    private final ArrayDeque<Future<WifiLocationDatabase.IngestResult>> pending = new ArrayDeque<>();
+    private final long start = SystemClock.elapsedRealtime();
+    private int written;
+    private int unchanged;
+    private int jumps;
+    private long blockedMillis;
+
+    public StreamingIngest(WifiLocationDatabase database) {
+        this.database = database;
+    }
+
+    /**
+     * Queue the chunk for writing, waiting for older chunks if too many are pending.
+     */
+    public synchronized void write(Collection<Location> chunk) throws IOException {
+        if (pending.size() >= MAX_PENDING_CHUNKS) {
+            long blocked = SystemClock.elapsedRealtime();
+            while (pending.size() >= MAX_PENDING_CHUNKS) {
+                awaitOldest();
+            }
+            blockedMillis += SystemClock.elapsedRealtime() - blocked;
+        }
+        pending.addLast(database.ingestAsync(chunk));
+    }
+
+    private void awaitOldest() throws IOException {
+        try {
+            WifiLocationDatabase.IngestResult result = pending.peekFirst().get();
+            written += result.written;
+            unchanged += result.unchanged;
+            jumps += result.jumps;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for database writer");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            pending.pollFirst();
+        }
+    }
+
+    /**
+     * Wait until all chunks are committed.
+     *
+     * @return statistics of all chunks written
+     */
+    public synchronized WifiLocationDatabase.IngestResult finish() throws IOException {
+        while (!pending.isEmpty()) {
+            awaitOldest();
+        }
+        return new WifiLocationDatabase.IngestResult(written, unchanged, jumps,
+                SystemClock.elapsedRealtime() - start);
+    }
+
+    /**
+     * @return time spent waiting for the writer to catch up
+     */
+    public synchronized long getBlockedMillis() {
+        return blockedMillis;
+    }
+}
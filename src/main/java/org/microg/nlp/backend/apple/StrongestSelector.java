@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2013-2018 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.backend.apple;
+
+import static org.microg.nlp.api.WiFiBackendHelper.WiFi;
+
+/**
+ * Partial selection of the strongest access points of a scan, without sorting all of them.
+ */
+public final class StrongestSelector {
+    private StrongestSelector() {
+    }
+
+    /**
+     * Reorder {@code wiFis[from..]} so that {@code wiFis[from..to)} holds its strongest entries,
+     * in no particular order. Runs in linear time on average.
+     */
+    public static void select(WiFi[] wiFis, int from, int to) {
+        int left = from, right = wiFis.length - 1;
+        if (to <= from || to > right) return;
+        while (left < right) {
+            int pivot = partition(wiFis, left, right, left + (right - left) / 2);
+            if (pivot == to) return;
+            if (pivot < to) {
+                left = pivot + 1;
+            } else {
+                right = pivot - 1;
+            }
+        }
+    }
+
+    /**
+     * Partition descending by signal strength around the pivot.
+     *
+     * @return final position of the pivot
+     */
+    private static int partition(WiFi[] wiFis, int left, int right, int pivotIndex) {
+        int pivot = wiFis[pivotIndex].getRssi();
+        swap(wiFis, pivotIndex, right);
+        int store = left;
+        for (int i = left; i < right; i++) {
+            if (wiFis[i].getRssi() > pivot) {
+                swap(wiFis, i, store++);
+            }
+        }
+        swap(wiFis, store, right);
+        return store;
+    }
+
+    private static void swap(WiFi[] wiFis, int i, int j) {
+        WiFi tmp = wiFis[i];
+        wiFis[i] = wiFis[j];
+        wiFis[j] = tmp;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2013-2018 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.backend.apple;
+
+import android.location.Location;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Looks up access points through a chain of {@link AccessPointSource}s, in the order they were
+ * added, and keeps hit and latency statistics per tier.
+ * <p>
+ * The last tier, the network, is not part of the chain: access points missed by all tiers are
+ * queued for retrieval by the caller and are only counted here.
+ */
+public class TieredLookup {
+    private final List<Tier> tiers = new ArrayList<>();
+    private long missCount;
+
+    public TieredLookup addTier(AccessPointSource source) {
+        tiers.add(new Tier(source));
+        return this;
+    }
+
+    /**
+     * @param allowSlow whether to use tiers that might block on I/O
+     * @return the location from the first tier knowing the access point, or null
+     */
+    public Location get(String mac, boolean allowSlow) {
+        for (int i = 0; i < tiers.size(); i++) {
+            Tier tier = tiers.get(i);
+            if (!allowSlow && tier.source.isSlow()) continue;
+            long start = System.nanoTime();
+            Location location = tier.source.get(mac);
+            tier.latency.record(System.nanoTime() - start);
+            synchronized (tier) {
+                tier.lookups++;
+                if (location != null) tier.hits++;
+            }
+            if (location != null) return location;
+        }
+        return null;
+    }
+
+    /**
+     * Count an access point missed by all tiers and handed over to the network.
+     */
+    public synchronized void onQueued(int count) {
+        missCount += count;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Tier tier : tiers) {
+            if (sb.length() > 0) sb.append("\n  ");
+            sb.append(tier);
+        }
+        synchronized (this) {
+            sb.append("\n  network: queued=").append(missCount);
+        }
+        return sb.toString();
+    }
+
+    private static class Tier {
+        private final AccessPointSource source;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private long lookups;
+        private long hits;
+
+        private Tier(AccessPointSource source) {
+            this.source = source;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return source.getName() + ": lookups=" + lookups + " hits=" + hits + " ratio=" +
+                    String.format("%.2f", lookups == 0 ? 0 : (double) hits / lookups) +
+                    " latency=" + latency;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2013-2018 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.backend.apple;
+
+import android.location.Location;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads stored locations around the last fix into the in-memory tier, so following scans can be
+ * resolved without touching SQLite.
+ * <p>
+ * Locations are loaded in tiles of {@link #TILE_SIZE} degrees. After each fix the tile of the
+ * fix and its eight neighbours are loaded, tiles further than {@link #EVICT_DISTANCE} tiles away
+ * are evicted from the cache again. Only locations this prefetcher added and that were not used
+ * since are evicted, so entries of the hot set or of lookups stay cached. The cache limits how
+ * many unused prefetched locations it holds, in dense areas the rest of the tiles is skipped.
+ */
+public class TilePrefetcher {
+    private static final String TAG = "AppleNlpPrefetch";
+    /**
+     * About 550 m in latitude direction, less in longitude direction away from the equator.
+     */
+    private static final double TILE_SIZE = 0.005;
+    private static final int EVICT_DISTANCE = 2;
+
+    private final WifiLocationDatabase database;
+    private final Map<Long, List<String>> loadedTiles = new HashMap<>();
+    private final AtomicLong loadedCount = new AtomicLong();
+    private final AtomicLong evictedCount = new AtomicLong();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "AppleNlpTilePrefetch");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private long lastTile = Long.MIN_VALUE;
+
+    public TilePrefetcher(WifiLocationDatabase database) {
+        this.database = database;
+    }
+
+    private static int tileIndex(double degrees) {
+        return (int) Math.floor(degrees / TILE_SIZE);
+    }
+
+    private static long tileKey(int latIndex, int lonIndex) {
+        return ((long) latIndex << 32) | (lonIndex & 0xffffffffL);
+    }
+
+    /**
+     * Prefetch the surrounding of the given fix. Returns immediately, loading happens on a
+     * background thread.
+     */
+    public void onFix(Location location) {
+        final int latIndex = tileIndex(location.getLatitude());
+        final int lonIndex = tileIndex(location.getLongitude());
+        long tile = tileKey(latIndex, lonIndex);
+        if (!database.isReady()) return;
+        synchronized (this) {
+            if (tile == lastTile) return;
+            lastTile = tile;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    load(latIndex, lonIndex);
+                    evict(latIndex, lonIndex);
+                }
+            });
+        } catch (RuntimeException e) {
+            // Rejected after close()
+        }
+    }
+
+    private void load(int latIndex, int lonIndex) {
+        WifiLocationCache cache = database.getCache();
+        for (int i = latIndex - 1; i <= latIndex + 1; i++) {
+            for (int j = lonIndex - 1; j <= lonIndex + 1; j++) {
+                long key = tileKey(i, j);
+                synchronized (this) {
+                    if (loadedTiles.containsKey(key)) continue;
+                }
+                List<Location> locations = database.getInArea(i * TILE_SIZE, j * TILE_SIZE,
+                        (i + 1) * TILE_SIZE, (j + 1) * TILE_SIZE);
+                List<String> macs = new ArrayList<>(locations.size());
+                for (Location location : locations) {
+                    // Entries that are cached already belong to someone else, leave them alone
+                    if (cache.putPrefetched(location)) {
+                        macs.add(location.getExtras().getString(LocationRetriever.EXTRA_MAC_ADDRESS));
+                    }
+                }
+                synchronized (this) {
+                    loadedTiles.put(key, macs);
+                }
+                loadedCount.addAndGet(macs.size());
+            }
+        }
+    }
+
+    private void evict(int latIndex, int lonIndex) {
+        WifiLocationCache cache = database.getCache();
+        List<List<String>> evicted = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Map.Entry<Long, List<String>>> iterator = loadedTiles.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Long, List<String>> entry = iterator.next();
+                int i = (int) (entry.getKey() >> 32);
+                int j = (int) (long) entry.getKey();
+                if (Math.abs(i - latIndex) > EVICT_DISTANCE || Math.abs(j - lonIndex) > EVICT_DISTANCE) {
+                    evicted.add(entry.getValue());
+                    iterator.remove();
+                }
+            }
+        }
+        for (List<String> macs : evicted) {
+            for (String mac : macs) {
+                // Only if nobody used it since it was loaded
+                if (cache.removePrefetched(mac)) evictedCount.incrementAndGet();
+            }
+        }
+        if (!evicted.isEmpty()) {
+            Log.d(TAG, "Evicted " + evicted.size() + " tiles");
+        }
+    }
+
+    public synchronized int getLoadedTileCount() {
+        return loadedTiles.size();
+    }
+
+    public long getLoadedCount() {
+        return loadedCount.get();
+    }
+
+    public long getEvictedCount() {
+        return evictedCount.get();
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+}
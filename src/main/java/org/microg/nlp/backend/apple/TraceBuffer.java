@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2013-2018 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.backend.apple;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Fixed-size ring buffer of trace events of the positioning pipeline.
+ * <p>
+ * Events are stored as primitives in preallocated arrays, so recording doesn't allocate or
+ * format anything. The buffer is only turned into text when it is dumped, either on request or
+ * when an anomaly is reported.
+ */
+public class TraceBuffer {
+    private static final String TAG = "AppleNlpTrace";
+    private static final long ANOMALY_INTERVAL = 60 * 1000;
+
+    /**
+     * Scan received, a = number of access points.
+     */
+    public static final int SCAN = 0;
+    /**
+     * Lookups done, a = access points with location, b = unknown access points, value = number of
+     * skipped access points.
+     */
+    public static final int LOOKUP = 1;
+    /**
+     * Clustering done, a = number of classes, b = size of the largest class.
+     */
+    public static final int CLASSES = 2;
+    /**
+     * Largest class judged, a = size, b = 1 if verified.
+     */
+    public static final int VERDICT = 3;
+    /**
+     * Weights calculated, a = number of access points, value = share of the heaviest one.
+     */
+    public static final int WEIGHTS = 4;
+    /**
+     * Fix reported, a = 1 if refined, value = accuracy.
+     */
+    public static final int FIX = 5;
+    /**
+     * No fix, a = access points with location.
+     */
+    public static final int NO_FIX = 6;
+    private static final String[] NAMES = {"scan", "lookup", "classes", "verdict", "weights", "fix", "no-fix"};
+
+    private final long[] times;
+    private final int[] scans;
+    private final int[] types;
+    private final int[] as;
+    private final int[] bs;
+    private final float[] values;
+    private int next;
+    private long count;
+    private int scanId;
+    private long lastAnomaly;
+
+    public TraceBuffer(int capacity) {
+        times = new long[capacity];
+        scans = new int[capacity];
+        types = new int[capacity];
+        as = new int[capacity];
+        bs = new int[capacity];
+        values = new float[capacity];
+    }
+
+    /**
+     * Start a new scan, following events are attributed to it.
+     */
+    public synchronized void beginScan(int accessPoints) {
+        scanId++;
+        record(SCAN, accessPoints, 0, 0);
+    }
+
+    public synchronized void record(int type, int a, int b, float value) {
+        times[next] = System.nanoTime();
+        scans[next] = scanId;
+        types[next] = type;
+        as[next] = a;
+        bs[next] = b;
+        values[next] = value;
+        next = (next + 1) % times.length;
+        count++;
+    }
+
+    /**
+     * Write the buffer to logcat, at most once per {@link #ANOMALY_INTERVAL}.
+     */
+    public void onAnomaly(String reason) {
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtime();
+            if (lastAnomaly != 0 && now - lastAnomaly < ANOMALY_INTERVAL) return;
+            lastAnomaly = now;
+        }
+        StringWriter sw = new StringWriter();
+        dump(new PrintWriter(sw));
+        Log.w(TAG, "Anomaly in scan " + scanId + ": " + reason + "\n" + sw);
+    }
+
+    /**
+     * Print the events in the buffer, oldest first, with times relative to the newest.
+     */
+    public synchronized void dump(PrintWriter writer) {
+        int size = (int) Math.min(count, times.length);
+        int first = (next - size + times.length) % times.length;
+        long last = times[(next - 1 + times.length) % times.length];
+        writer.println("Trace: events=" + count + " buffered=" + size);
+        for (int i = 0; i < size; i++) {
+            int j = (first + i) % times.length;
+            writer.println(String.format("  %8.1fms #%d %s %d %d %.2f", (times[j] - last) / 1000000.0,
+                    scans[j], NAMES[types[j]], as[j], bs[j], values[j]));
+        }
+        writer.flush();
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2013-2018 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.backend.apple;
+
+import android.location.Location;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.microg.nlp.api.LocationHelper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Fetches the neighbourhood of access points along the projected path of the device, before it
+ * arrives there.
+ * <p>
+ * Heading and speed are estimated from the recent fixes. Along the projected path, the nearest
+ * stored access point within {@link #MAX_SEED_DISTANCE} of each sample point is used as a seed,
+ * unless local data already covers that point. As Apple returns the surrounding access points
+ * for each requested MAC, requesting the seeds resolves the area ahead of the device.
+ */
+public class TrajectoryPrefetcher {
+    private static final String TAG = "AppleNlpTrajectory";
+    private static final double EARTH_RADIUS = 6371000;
+    private static final int HISTORY_SIZE = 5;
+    private static final long HISTORY_WINDOW = 2 * 60 * 1000;
+    private static final float MIN_SPEED = 1.5F;
+    private static final long LOOKAHEAD_TIME = 2 * 60 * 1000;
+    private static final float MAX_LOOKAHEAD_DISTANCE = 3000;
+    private static final float SAMPLE_DISTANCE = 400;
+    /**
+     * A sample point is considered resolved, if a stored access point is closer than this.
+     */
+    private static final float RESOLVED_DISTANCE = 150;
+    /**
+     * Seeds farther away than this from a sample point would resolve a different area.
+     */
+    private static final float MAX_SEED_DISTANCE = 1000;
+    private static final long MAX_SEED_AGE = 1000L * 60 * 60 * 24 * 30;
+    private static final long ONE_HOUR = 60 * 60 * 1000;
+    private static final int DEFAULT_REQUEST_BUDGET = 20;
+
+    private final WifiLocationDatabase database;
+    private final RetrievalCoordinator coordinator;
+    private final List<Long> requestTimes = new ArrayList<>();
+    private final Map<String, Long> recentSeeds = new HashMap<>();
+    private final Location[] history = new Location[HISTORY_SIZE];
+    private final long[] historyTimes = new long[HISTORY_SIZE];
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "AppleNlpTrajectoryPrefetch");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private int historyPos;
+    private int requestBudget = DEFAULT_REQUEST_BUDGET;
+    private boolean busy;
+    private long seedCount;
+
+    public TrajectoryPrefetcher(WifiLocationDatabase database, RetrievalCoordinator coordinator) {
+        this.database = database;
+        this.coordinator = coordinator;
+    }
+
+    /**
+     * @param requestsPerHour maximum number of network requests issued by this prefetcher per hour
+     */
+    public synchronized void setRequestBudget(int requestsPerHour) {
+        this.requestBudget = requestsPerHour;
+    }
+
+    public void onFix(Location location) {
+        final Location from;
+        final float bearing, speed;
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtime();
+            history[historyPos] = location;
+            historyTimes[historyPos] = now;
+            historyPos = (historyPos + 1) % HISTORY_SIZE;
+            if (busy || !database.isReady() || getRemainingBudget(now) <= 0) return;
+            // Oldest fix within the window
+            Location oldest = null;
+            long oldestTime = now;
+            for (int i = 0; i < HISTORY_SIZE; i++) {
+                if (history[i] != null && historyTimes[i] < oldestTime &&
+                        now - historyTimes[i] < HISTORY_WINDOW) {
+                    oldest = history[i];
+                    oldestTime = historyTimes[i];
+                }
+            }
+            if (oldest == null) return;
+            speed = oldest.distanceTo(location) * 1000F / (now - oldestTime);
+            // Don't extrapolate movement that is smaller than the accuracy of the fixes
+            if (speed < MIN_SPEED || oldest.distanceTo(location) < location.getAccuracy()) return;
+            bearing = oldest.bearingTo(location);
+            from = location;
+            busy = true;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        prefetch(from, bearing, speed);
+                    } finally {
+                        synchronized (TrajectoryPrefetcher.this) {
+                            busy = false;
+                        }
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // Rejected after close()
+            synchronized (this) {
+                busy = false;
+            }
+        }
+    }
+
+    private void prefetch(Location from, float bearing, float speed) {
+        float distance = Math.min(speed * LOOKAHEAD_TIME / 1000F, MAX_LOOKAHEAD_DISTANCE);
+        Set<String> seeds = new LinkedHashSet<>();
+        long now = SystemClock.elapsedRealtime();
+        for (float d = SAMPLE_DISTANCE; d <= distance; d += SAMPLE_DISTANCE) {
+            Location point = project(from, bearing, d);
+            Location seed = findSeed(point);
+            if (seed == null || seed.distanceTo(point) < RESOLVED_DISTANCE) continue;
+            String mac = seed.getExtras().getString(LocationRetriever.EXTRA_MAC_ADDRESS);
+            synchronized (this) {
+                Long requested = recentSeeds.get(mac);
+                if (requested != null && now - requested < ONE_HOUR) continue;
+            }
+            seeds.add(mac);
+        }
+        if (seeds.isEmpty()) return;
+        synchronized (this) {
+            if (getRemainingBudget(now) <= 0) return;
+            requestTimes.add(now);
+            for (String mac : seeds) {
+                recentSeeds.put(mac, now);
+            }
+            seedCount += seeds.size();
+        }
+        Log.d(TAG, "Prefetching " + seeds.size() + " seeds along " + Math.round(distance) +
+                "m heading " + Math.round(bearing));
+        try {
+            coordinator.retrieve(seeds, null);
+        } catch (IOException e) {
+            Log.w(TAG, e);
+        }
+    }
+
+    /**
+     * @return the nearest recent access point within {@link #MAX_SEED_DISTANCE} of the point,
+     * looked up in the bounding box around it
+     */
+    private Location findSeed(Location point) {
+        double dLat = Math.toDegrees(MAX_SEED_DISTANCE / EARTH_RADIUS);
+        double dLon = dLat / Math.cos(Math.toRadians(point.getLatitude()));
+        List<Location> candidates = database.getInArea(point.getLatitude() - dLat,
+                point.getLongitude() - dLon, point.getLatitude() + dLat,
+                point.getLongitude() + dLon);
+        long minTime = System.currentTimeMillis() - MAX_SEED_AGE;
+        Location seed = null;
+        float seedDistance = MAX_SEED_DISTANCE;
+        for (Location candidate : candidates) {
+            if (candidate.getTime() < minTime) continue;
+            float distance = candidate.distanceTo(point);
+            if (distance <= seedDistance) {
+                seed = candidate;
+                seedDistance = distance;
+            }
+        }
+        return seed;
+    }
+
+    /**
+     * Project a point from the given location, using an equirectangular approximation, which is
+     * good enough for a few kilometers.
+     */
+    private static Location project(Location from, float bearing, float distance) {
+        double rad = Math.toRadians(bearing);
+        double dLat = distance * Math.cos(rad) / EARTH_RADIUS;
+        double dLon = distance * Math.sin(rad) /
+                (EARTH_RADIUS * Math.cos(Math.toRadians(from.getLatitude())));
+        return LocationHelper.create("projected", from.getLatitude() + Math.toDegrees(dLat),
+                from.getLongitude() + Math.toDegrees(dLon), 0);
+    }
+
+    private int getRemainingBudget(long now) {
+        Iterator<Long> iterator = requestTimes.iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next() > ONE_HOUR) iterator.remove();
+        }
+        Iterator<Long> seeds = recentSeeds.values().iterator();
+        while (seeds.hasNext()) {
+            if (now - seeds.next() > ONE_HOUR) seeds.remove();
+        }
+        return requestBudget - requestTimes.size();
+    }
+
+    public synchronized int getRemainingBudget() {
+        return getRemainingBudget(SystemClock.elapsedRealtime());
+    }
+
+    public synchronized long getSeedCount() {
+        return seedCount;
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+}
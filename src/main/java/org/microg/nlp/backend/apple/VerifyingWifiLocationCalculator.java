@@ -18,7 +18,6 @@ package org.microg.nlp.backend.apple;
 
 import android.location.Location;
 import android.os.Bundle;
-import android.util.Log;
 
 import org.microg.nlp.api.LocationHelper;
 
@@ -29,7 +28,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
-public class VerifyingWifiLocationCalculator {
+public class VerifyingWifiLocationCalculator implements LocationCalculator {
     private static final String TAG = "AppleNlpCalculator";
 
     private static final long ONE_DAY = 24 * 60 * 60 * 1000;
@@ -38,12 +37,24 @@ public class VerifyingWifiLocationCalculator {
     private static final int MIN_SIGNAL_LEVEL = -200;
     private final WifiLocationDatabase database;
     private final String provider;
+    private float[] signals = new float[16];
+    private float[] accuracies = new float[16];
+    private double[] latitudes = new double[16];
+    private double[] longitudes = new double[16];
+    private TraceBuffer trace;
 
     public VerifyingWifiLocationCalculator(String provider, WifiLocationDatabase database) {
         this.database = database;
         this.provider = provider;
     }
 
+    /**
+     * Record the stages of each calculation to the given trace buffer, if not null.
+     */
+    public void setTrace(TraceBuffer trace) {
+        this.trace = trace;
+    }
+
     private static Set<Set<Location>> divideInClasses(Set<Location> locations, double accuracy) {
         Set<Set<Location>> classes = new HashSet<Set<Location>>();
         for (Location location : locations) {
@@ -83,7 +94,28 @@ public class VerifyingWifiLocationCalculator {
           */
     }
 
+    /**
+     * Calculate the fix, then {@link #commit(Result) persist} the verification and
+     * {@link #rate(Result) rate} the access points.
+     */
+    @Override
     public Location calculate(Set<Location> locations) {
+        Result result = evaluate(locations);
+        commit(result);
+        rate(result);
+        return result.location;
+    }
+
+    /**
+     * Calculate the fix without side effects: nothing is written to the database and no access
+     * point is rated until the result is passed to {@link #commit(Result)} and
+     * {@link #rate(Result)}. Useful to try several selections of access points and only keep the
+     * last one.
+     * <p>
+     * Synchronized, as the buffers are reused and refinements may run on another thread than
+     * the scan.
+     */
+    public synchronized Result evaluate(Set<Location> locations) {
         Set<Set<Location>> locationClasses = divideInClasses(locations, MAX_WIFI_RADIUS);
         combineClasses(locationClasses, MAX_WIFI_RADIUS);
         List<Set<Location>> clsList = new ArrayList<Set<Location>>(locationClasses);
@@ -93,20 +125,18 @@ public class VerifyingWifiLocationCalculator {
                 return rhs.size() - lhs.size();
             }
         });
-        StringBuilder sb = new StringBuilder("Build classes of size:");
-        for (Set<Location> set : clsList) {
-            sb.append(" ").append(set.size());
+        TraceBuffer trace = this.trace;
+        if (trace != null) {
+            trace.record(TraceBuffer.CLASSES, clsList.size(), clsList.isEmpty() ? 0 : clsList.get(0).size(), 0);
         }
-        Log.d(TAG, sb.toString());
         if (!clsList.isEmpty()) {
             Set<Location> cls = clsList.get(0);
             if (cls.size() == 1) {
                 Location location = cls.iterator().next();
-                if (isVerified(location)) {
-                    Log.d(TAG, "is single class, but verified.");
-                    return location;
-                }
-                return null;
+                boolean verified = isVerified(location);
+                if (trace != null) trace.record(TraceBuffer.VERDICT, 1, verified ? 1 : 0, 0);
+                // Nothing to persist for a single access point
+                return new Result(verified ? location : null, verified, null, locations);
             } else if (cls.size() == 2) {
                 boolean verified = false;
                 for (Location location : cls) {
@@ -115,72 +145,174 @@ public class VerifyingWifiLocationCalculator {
                         break;
                     }
                 }
-                if (verified) {
-                    Log.d(TAG, "is dual class and verified.");
-                    verify(cls);
-                } else {
-                    Log.d(TAG, "is dual class, but not verified.");
-                }
-            } else if (cls.size() > 2) {
-                Log.d(TAG, "is multi class and auto-verified.");
-                verify(cls);
+                if (trace != null) trace.record(TraceBuffer.VERDICT, 2, verified ? 1 : 0, 0);
+                return new Result(combine(cls), verified, verified ? cls : null, locations);
+            } else {
+                // Multi class is auto-verified
+                if (trace != null) trace.record(TraceBuffer.VERDICT, cls.size(), 1, 0);
+                return new Result(combine(cls), true, cls, locations);
+            }
+        }
+        return new Result(null, false, null, locations);
+    }
+
+    /**
+     * Mark the access points of the verified class as verified in the database. Does nothing for
+     * unverified results.
+     */
+    public void commit(Result result) {
+        if (result.cls == null) return;
+        long now = verify(result.cls);
+        result.location.getExtras().putLong(LocationRetriever.EXTRA_VERIFIED_TIME, now);
+    }
+
+    /**
+     * Update the {@link ReliabilityIndex}: access points outside of the verified class disagree
+     * with it, the ones inside agree. Does nothing for unverified results. Meant for the final
+     * result of a scan only, earlier ones are based on fewer access points.
+     */
+    public void rate(Result result) {
+        if (result.cls == null) return;
+        ReliabilityIndex reliability = database.getReliability();
+        for (Location location : result.locations) {
+            String mac = location.getExtras().getString(LocationRetriever.EXTRA_MAC_ADDRESS);
+            if (result.cls.contains(location)) {
+                reliability.onAgree(mac);
+            } else {
+                reliability.onDisagree(mac);
             }
-            return combine(cls);
         }
-        return null;
     }
 
-    private int getSignalLevel(Location location) {
+    static int getSignalLevel(Location location) {
         return Math.abs(location.getExtras().getInt(LocationRetriever.EXTRA_SIGNAL_LEVEL) -
                 MIN_SIGNAL_LEVEL);
     }
 
-    private Location combine(Set<Location> locations) {
+    private void ensureCapacity(int size) {
+        if (signals.length < size) {
+            int capacity = Math.max(size, signals.length * 2);
+            signals = new float[capacity];
+            accuracies = new float[capacity];
+            latitudes = new double[capacity];
+            longitudes = new double[capacity];
+        }
+    }
+
+    /**
+     * Weighted average of the locations, equivalent to {@link LocationHelper#weightedAverage}
+     * with the weights of {@link #calculateWeight(float, float, float, float)}.
+     * <p>
+     * The locations are copied to primitive arrays first, the normalization, weighting and
+     * summing is then done in a single pass over these arrays.
+     */
+    Location combine(Set<Location> locations) {
+        int size = locations.size();
+        ensureCapacity(size);
         float minSignal = Integer.MAX_VALUE, maxSignal = Integer.MIN_VALUE;
         long verified = -1;
+        double altitude = 0;
+        int altitudes = 0;
+        int i = 0;
         for (Location location : locations) {
-            minSignal = Math.min(minSignal, getSignalLevel(location));
-            maxSignal = Math.max(maxSignal, getSignalLevel(location));
-            if (location.getExtras().containsKey(LocationRetriever.EXTRA_VERIFIED_TIME)) {
-                verified = Math.max(verified, location.getExtras().getLong(LocationRetriever.EXTRA_VERIFIED_TIME));
+            Bundle extras = location.getExtras();
+            float signal = getSignalLevel(location);
+            minSignal = Math.min(minSignal, signal);
+            maxSignal = Math.max(maxSignal, signal);
+            if (extras.containsKey(LocationRetriever.EXTRA_VERIFIED_TIME)) {
+                verified = Math.max(verified, extras.getLong(LocationRetriever.EXTRA_VERIFIED_TIME));
+            }
+            if (location.hasAltitude()) {
+                altitude += location.getAltitude();
+                altitudes++;
             }
+            signals[i] = signal;
+            accuracies[i] = location.getAccuracy();
+            latitudes[i] = location.getLatitude();
+            longitudes[i] = location.getLongitude();
+            i++;
+        }
+
+        double totalWeight = 0, maxWeight = 0, latitude = 0, longitude = 0;
+        float accuracy = 0;
+        for (i = 0; i < size; i++) {
+            double weight = calculateWeight(signals[i], accuracies[i], minSignal, maxSignal);
+            maxWeight = Math.max(maxWeight, weight);
+            latitude += latitudes[i] * weight;
+            longitude += longitudes[i] * weight;
+            accuracy += accuracies[i] * weight;
+            totalWeight += weight;
         }
+        TraceBuffer trace = this.trace;
+        if (trace != null) trace.record(TraceBuffer.WEIGHTS, size, 0, (float) (maxWeight / totalWeight));
 
-        final float finalMaxSignal = maxSignal;
-        final float finalMinSignal = minSignal;
         Bundle extras = new Bundle();
-        extras.putInt("COMBINED_OF", locations.size());
+        extras.putInt("COMBINED_OF", size);
         if (verified != -1) {
             extras.putLong(LocationRetriever.EXTRA_VERIFIED_TIME, verified);
         }
-        return LocationHelper.weightedAverage(provider, locations, new LocationHelper.LocationBalance() {
-            @Override
-            public double getWeight(Location location) {
-                double weight = calculateWeight(location, finalMinSignal, finalMaxSignal);
-                Log.d(TAG, String.format("Using with weight=%f mac=%s sig=%d acc=%f lat=%f lon=%f", weight,
-                        location.getExtras().getString(LocationRetriever.EXTRA_MAC_ADDRESS),
-                        location.getExtras().getInt(LocationRetriever.EXTRA_SIGNAL_LEVEL), location.getAccuracy(),
-                        location.getLatitude(), location.getLongitude()));
-                return weight;
-            }
-        }, extras);
+        extras.putInt("AVERAGED_OF", size);
+        if (altitudes > 0) {
+            return LocationHelper.create(provider, latitude / totalWeight, longitude / totalWeight,
+                    altitude / altitudes, (float) (accuracy / totalWeight), extras);
+        }
+        return LocationHelper.create(provider, latitude / totalWeight, longitude / totalWeight,
+                (float) (accuracy / totalWeight), extras);
     }
 
-    private double calculateWeight(Location location, float minSignal, float maxSignal) {
-        return Math.pow(((float) getSignalLevel(location) - minSignal) / (maxSignal - minSignal) + ACCURACY_WEIGHT / Math.max(location.getAccuracy(), ACCURACY_WEIGHT), 2);
+    static double calculateWeight(float signal, float accuracy, float minSignal, float maxSignal) {
+        double weight = (signal - minSignal) / (maxSignal - minSignal) + ACCURACY_WEIGHT / Math.max(accuracy, ACCURACY_WEIGHT);
+        return weight * weight;
     }
 
-    private void verify(Set<Location> cls) {
+    /**
+     * @return the verification time
+     */
+    private long verify(Set<Location> cls) {
+        long now = System.currentTimeMillis();
         WifiLocationDatabase.Editor editor = database.edit();
         for (Location location : cls) {
-            location.getExtras().putLong(LocationRetriever.EXTRA_VERIFIED_TIME, System.currentTimeMillis());
+            // Offline data is not Apple's, and its time would suppress refreshes
+            if (location.getExtras().getBoolean(OfflineDataset.EXTRA_OFFLINE)) continue;
+            location.getExtras().putLong(LocationRetriever.EXTRA_VERIFIED_TIME, now);
             editor.put(location);
         }
         editor.end();
+        return now;
     }
 
     private boolean isVerified(Location location) {
         return location.getExtras().getLong(LocationRetriever.EXTRA_VERIFIED_TIME) > System.currentTimeMillis() - ONE_DAY;
     }
 
+    /**
+     * Outcome of {@link #evaluate(Set)}.
+     */
+    public static class Result {
+        private final Location location;
+        private final boolean verified;
+        private final Set<Location> cls;
+        private final Set<Location> locations;
+
+        private Result(Location location, boolean verified, Set<Location> cls, Set<Location> locations) {
+            this.location = location;
+            this.verified = verified;
+            this.cls = cls;
+            this.locations = locations;
+        }
+
+        /**
+         * @return the fix, which may be unverified, or null if the locations don't allow one
+         */
+        public Location getLocation() {
+            return location;
+        }
+
+        /**
+         * @return whether the fix is based on a verified class of access points
+         */
+        public boolean isVerified() {
+            return verified;
+        }
+    }
 }
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2013-2018 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.backend.apple;
+
+import android.location.Location;
+import android.os.Bundle;
+
+import org.microg.nlp.api.LocationHelper;
+
+import java.util.Set;
+
+/**
+ * Signal weighted centroid of all access points, without clustering or verification.
+ * <p>
+ * Much cheaper than {@link VerifyingWifiLocationCalculator}, but a single moved access point
+ * pulls the result away. Used as candidate in shadow mode, to see how often that matters.
+ */
+public class WeightedCentroidCalculator implements LocationCalculator {
+    private static final float ACCURACY_WEIGHT = 50;
+    private static final int MIN_LOCATIONS = 2;
+
+    private final String provider;
+
+    public WeightedCentroidCalculator(String provider) {
+        this.provider = provider;
+    }
+
+    @Override
+    public Location calculate(Set<Location> locations) {
+        if (locations.size() < MIN_LOCATIONS) return null;
+        double totalWeight = 0, latitude = 0, longitude = 0, accuracy = 0;
+        for (Location location : locations) {
+            // Signal of -100 dBm and below counts as barely received
+            double signal = Math.max(location.getExtras().getInt(LocationRetriever.EXTRA_SIGNAL_LEVEL) + 100, 1);
+            double weight = signal * signal / Math.max(location.getAccuracy(), ACCURACY_WEIGHT);
+            latitude += location.getLatitude() * weight;
+            longitude += location.getLongitude() * weight;
+            accuracy += location.getAccuracy() * weight;
+            totalWeight += weight;
+        }
+        Bundle extras = new Bundle();
+        extras.putInt("COMBINED_OF", locations.size());
+        return LocationHelper.create(provider, latitude / totalWeight, longitude / totalWeight,
+                (float) (accuracy / totalWeight), extras);
+    }
+}
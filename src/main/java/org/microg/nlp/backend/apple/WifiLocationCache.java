@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2013-2018 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.backend.apple;
+
+import android.location.Location;
+import android.os.Bundle;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory tier in front of {@link WifiLocationDatabase}, holding the most recently used
+ * locations as primitives.
+ * <p>
+ * The most recently used part can be persisted as a compact snapshot file and memory-mapped on
+ * the next start, so the first fix after a restart doesn't have to wait for SQLite.
+ */
+public class WifiLocationCache implements MemoryBudget.Tier {
+    private static final int SNAPSHOT_MAGIC = 0x41485331; // AHS1
+    private static final int SNAPSHOT_HEADER_SIZE = 8;
+    /**
+     * mac (8), latitude (8), longitude (8), altitude (4), accuracy (4), time (8), verified (8)
+     */
+    private static final int SNAPSHOT_RECORD_SIZE = 48;
+    /**
+     * Number of MAC addresses remembered as not stored in the database.
+     */
+    private static final int MISSING_CAPACITY = 1024;
+    /**
+     * Share of the capacity that locations loaded ahead of time may take, so they never push
+     * out much of the locations actually in use.
+     */
+    private static final float PREFETCH_SHARE = 0.25F;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final LinkedHashMap<String, Boolean> missing = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MISSING_CAPACITY;
+        }
+    };
+    private int capacity;
+    private int prefetchedCount;
+    /**
+     * Incremented whenever marks are cleared, so a lookup that started before can't mark again.
+     */
+    private long missingEpoch;
+
+    public WifiLocationCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public synchronized Location get(String mac) {
+        Entry entry = entries.get(mac);
+        if (entry == null) return null;
+        if (entry.prefetched) {
+            entry.prefetched = false;
+            prefetchedCount--;
+        }
+        return entry.toLocation(mac);
+    }
+
+    /**
+     * Add a location loaded ahead of time, unless it is cached already or unused locations
+     * loaded ahead of time take their {@link #PREFETCH_SHARE} of the capacity. Until it is used,
+     * it can be removed again with {@link #removePrefetched(String)}.
+     *
+     * @return true if the location was added
+     */
+    public synchronized boolean putPrefetched(Location location) {
+        String mac = location.getExtras().getString(LocationRetriever.EXTRA_MAC_ADDRESS);
+        if (mac == null || entries.containsKey(mac)) return false;
+        if (prefetchedCount >= capacity * PREFETCH_SHARE) return false;
+        Entry entry = new Entry(location);
+        entry.prefetched = true;
+        prefetchedCount++;
+        put(mac, entry);
+        return true;
+    }
+
+    /**
+     * Remove a location added by {@link #putPrefetched(Location)}, if it was not used or
+     * replaced since.
+     *
+     * @return true if the location was removed
+     */
+    public synchronized boolean removePrefetched(String mac) {
+        Entry entry = entries.get(mac);
+        if (entry == null || !entry.prefetched) return false;
+        entries.remove(mac);
+        prefetchedCount--;
+        return true;
+    }
+
+    /**
+     * @return value to pass to {@link #markMissing(String, long)}, taken before the database is
+     * queried
+     */
+    public synchronized long getMissingEpoch() {
+        return missingEpoch;
+    }
+
+    /**
+     * Remember that the MAC address is not in the database, until a location for it is stored.
+     * Ignored if marks were cleared since the given epoch, as the database query may have missed
+     * a location committed in the meantime.
+     */
+    public synchronized void markMissing(String mac, long epoch) {
+        if (capacity > 0 && epoch == missingEpoch) missing.put(mac, Boolean.TRUE);
+    }
+
+    /**
+     * Forget that the given MAC addresses are not in the database. Called once locations for
+     * them are committed.
+     */
+    public synchronized void clearMissing(Collection<String> macs) {
+        missingEpoch++;
+        for (String mac : macs) {
+            missing.remove(mac);
+        }
+    }
+
+    public synchronized boolean isMissing(String mac) {
+        return missing.containsKey(mac);
+    }
+
+    public synchronized void put(Location location) {
+        if (location == null) return;
+        String mac = location.getExtras().getString(LocationRetriever.EXTRA_MAC_ADDRESS);
+        if (mac == null) return;
+        put(mac, new Entry(location));
+    }
+
+    private void put(String mac, Entry entry) {
+        missing.remove(mac);
+        forget(entries.put(mac, entry));
+        trim();
+    }
+
+    /**
+     * Replace a cached location, but don't add it if it is not cached yet.
+     */
+    public synchronized void update(Location location) {
+        String mac = location.getExtras().getString(LocationRetriever.EXTRA_MAC_ADDRESS);
+        if (mac != null && entries.containsKey(mac)) {
+            forget(entries.put(mac, new Entry(location)));
+        }
+    }
+
+    /**
+     * Update the retrieval time of a cached location, if present.
+     */
+    public synchronized void touch(String mac, long time) {
+        Entry entry = entries.get(mac);
+        if (entry != null) entry.time = time;
+    }
+
+    public synchronized void remove(String mac) {
+        forget(entries.remove(mac));
+    }
+
+    /**
+     * Account for an entry that was replaced or removed.
+     */
+    private void forget(Entry entry) {
+        if (entry != null && entry.prefetched) prefetchedCount--;
+    }
+
+    /**
+     * @return number of locations loaded ahead of time that were not used yet
+     */
+    public synchronized int getPrefetchedCount() {
+        return prefetchedCount;
+    }
+
+    @Override
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized void setCapacity(int capacity) {
+        this.capacity = capacity;
+        trim();
+    }
+
+    private void trim() {
+        if (capacity == 0) missing.clear();
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (entries.size() > capacity && iterator.hasNext()) {
+            forget(iterator.next());
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Write the most recently used locations to the given file.
+     *
+     * @return number of locations written
+     */
+    public int writeSnapshot(File file, int limit) throws IOException {
+        List<String> macs;
+        List<Entry> values;
+        synchronized (this) {
+            int skip = Math.max(entries.size() - limit, 0);
+            macs = new ArrayList<String>(entries.size() - skip);
+            values = new ArrayList<Entry>(entries.size() - skip);
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                if (skip-- > 0) continue;
+                macs.add(e.getKey());
+                values.add(e.getValue().copy());
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(SNAPSHOT_HEADER_SIZE + SNAPSHOT_RECORD_SIZE * macs.size());
+        buffer.putInt(SNAPSHOT_MAGIC).putInt(0);
+        int count = 0;
+        for (int i = 0; i < macs.size(); i++) {
+            long mac = macToLong(macs.get(i));
+            if (mac == -1) continue;
+            Entry entry = values.get(i);
+            buffer.putLong(mac).putDouble(entry.latitude).putDouble(entry.longitude)
+                    .putFloat(entry.altitude).putFloat(entry.accuracy).putLong(entry.time)
+                    .putLong(entry.verified);
+            count++;
+        }
+        buffer.putInt(4, count);
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(buffer.array(), 0, buffer.position());
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+        return count;
+    }
+
+    /**
+     * Memory-map a snapshot written by {@link #writeSnapshot(File, int)} and add its locations.
+     * Locations already in the cache are newer and kept.
+     *
+     * @return number of locations read
+     */
+    public int readSnapshot(File file) throws IOException {
+        if (!file.exists()) return 0;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() < SNAPSHOT_HEADER_SIZE) return 0;
+            ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) return 0;
+            }
+            header.flip();
+            if (header.getInt() != SNAPSHOT_MAGIC) return 0;
+            int count = header.getInt();
+            // A corrupt header must neither loop nor map beyond the records actually in the file
+            if (count < 0 || count > (channel.size() - SNAPSHOT_HEADER_SIZE) / SNAPSHOT_RECORD_SIZE) {
+                throw new IOException("Invalid snapshot record count " + count);
+            }
+            if (count == 0) return 0;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, SNAPSHOT_HEADER_SIZE,
+                    (long) count * SNAPSHOT_RECORD_SIZE);
+            synchronized (this) {
+                for (int i = 0; i < count; i++) {
+                    String mac = longToMac(buffer.getLong());
+                    Entry entry = new Entry(buffer.getDouble(), buffer.getDouble(),
+                            buffer.getFloat(), buffer.getFloat(), buffer.getLong(), buffer.getLong());
+                    if (!entries.containsKey(mac)) put(mac, entry);
+                }
+            }
+            return count;
+        } finally {
+            raf.close();
+        }
+    }
+
+    static long macToLong(String mac) {
+        if (mac == null || mac.length() != 17) return -1;
+        long result = 0;
+        for (int i = 0; i < 6; i++) {
+            int b;
+            try {
+                b = Integer.parseInt(mac.substring(i * 3, i * 3 + 2), 16);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+            result = (result << 8) | b;
+        }
+        return result;
+    }
+
+    static String longToMac(long mac) {
+        char[] chars = new char[17];
+        for (int i = 0; i < 6; i++) {
+            int b = (int) (mac >> ((5 - i) * 8)) & 0xff;
+            chars[i * 3] = Character.forDigit(b >> 4, 16);
+            chars[i * 3 + 1] = Character.forDigit(b & 0xf, 16);
+            if (i < 5) chars[i * 3 + 2] = ':';
+        }
+        return new String(chars);
+    }
+
+    private static class Entry {
+        private final double latitude;
+        private final double longitude;
+        private final float altitude;
+        private final float accuracy;
+        private long time;
+        private final long verified;
+        /**
+         * Loaded by a prefetcher and not used since.
+         */
+        private boolean prefetched;
+
+        private Entry(double latitude, double longitude, float altitude, float accuracy,
+                      long time, long verified) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.altitude = altitude;
+            this.accuracy = accuracy;
+            this.time = time;
+            this.verified = verified;
+        }
+
+        private Entry(Location location) {
+            this(location.getLatitude(), location.getLongitude(),
+                    location.hasAltitude() ? (float) location.getAltitude() : Float.NaN,
+                    location.hasAccuracy() ? location.getAccuracy() : Float.NaN,
+                    location.getTime(),
+                    location.getExtras().getLong(LocationRetriever.EXTRA_VERIFIED_TIME));
+        }
+
+        private Entry copy() {
+            return new Entry(latitude, longitude, altitude, accuracy, time, verified);
+        }
+
+        private Location toLocation(String mac) {
+            Location location = new Location("database");
+            Bundle extras = new Bundle();
+            extras.putString(LocationRetriever.EXTRA_MAC_ADDRESS, mac);
+            extras.putLong(LocationRetriever.EXTRA_VERIFIED_TIME, verified);
+            location.setLatitude(latitude);
+            location.setLongitude(longitude);
+            if (!Float.isNaN(altitude)) location.setAltitude(altitude);
+            if (!Float.isNaN(accuracy)) location.setAccuracy(accuracy);
+            location.setTime(time);
+            location.setExtras(extras);
+            return location;
+        }
+    }
+}
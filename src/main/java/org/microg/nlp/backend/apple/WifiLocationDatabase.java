@@ -19,17 +19,65 @@ package org.microg.nlp.backend.apple;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.location.Location;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.SystemClock;
+import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 public class WifiLocationDatabase extends SQLiteOpenHelper {
-    private static final int DATABASE_VERSION = 2;
+    private static final String TAG = "AppleNlpDatabase";
+    private static final int DATABASE_VERSION = 5;
+
+    /**
+     * Number of rows written per transaction during bulk ingest. Must stay below SQLite's limit
+     * of 999 bound parameters, as it is also used for the lookup of existing rows.
+     */
+    private static final int INGEST_CHUNK_SIZE = 500;
+
+    /**
+     * Write-ahead logging is available since Honeycomb. Without it, readers and the writer share
+     * one connection and the reader connection is not used.
+     */
+    private static final boolean WAL_SUPPORTED = Build.VERSION.SDK_INT >= 11;
+    /**
+     * Automatic checkpoints are disabled, instead the writer thread runs a passive checkpoint
+     * between transactions once this many rows were written.
+     */
+    private static final int CHECKPOINT_ROWS = 2000;
+    private static final long JOURNAL_SIZE_LIMIT = 4 * 1024 * 1024;
+
+    private static final long OPEN_RETRY_DELAY = 60 * 1000;
+    private static final int CACHE_CAPACITY = 4096;
+    private static final int SNAPSHOT_SIZE = 2048;
+    private static final String SNAPSHOT_FILE = "hotset.bin";
+    private static final String RELIABILITY_FILE = "reliability.bin";
+    /**
+     * A known access point whose retrieved position moved further than this is penalized in the
+     * {@link ReliabilityIndex}.
+     */
+    private static final float JUMP_DISTANCE = 1000;
 
     private static final String TABLE_NAME = "location";
 
@@ -52,6 +100,20 @@ public class WifiLocationDatabase extends SQLiteOpenHelper {
      */
     private static final String FIELD_VERIFIED = "verified";
 
+    private static final String TABLE_REGION = "region";
+    /**
+     * The field containing the key of a region cell, as used by {@link RegionPackBuilder}.
+     */
+    private static final String FIELD_CELL = "cell";
+    private static final String FIELD_VISITS = "visits";
+    private static final String FIELD_LAST_VISIT = "last_visit";
+
+    private static final String TABLE_QUEUE = "queue";
+    /**
+     * The time a MAC address was added to the retrieval queue.
+     */
+    private static final String FIELD_ADDED = "added";
+
     private static final String SQL_CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + "(" +
             FIELD_MAC + " TEXT PRIMARY KEY, " +
             FIELD_LATITUDE + " REAL, " +
@@ -61,30 +123,297 @@ public class WifiLocationDatabase extends SQLiteOpenHelper {
             FIELD_TIME + " REAL," +
             FIELD_VERIFIED + " REAL " + ")";
 
+    private static final String SQL_INSERT = "INSERT OR REPLACE INTO " + TABLE_NAME + "(" +
+            FIELD_MAC + ", " + FIELD_LATITUDE + ", " + FIELD_LONGITUDE + ", " + FIELD_ALTITUDE +
+            ", " + FIELD_ACCURACY + ", " + FIELD_TIME + ", " + FIELD_VERIFIED + ") " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String SQL_TOUCH = "UPDATE " + TABLE_NAME + " SET " + FIELD_TIME +
+            " = ? WHERE " + FIELD_MAC + " = ?";
+
+    private static final String SQL_CREATE_INDEX_POSITION = "CREATE INDEX " + TABLE_NAME +
+            "_position ON " + TABLE_NAME + "(" + FIELD_LATITUDE + ", " + FIELD_LONGITUDE + ")";
+
+    private static final String SQL_CREATE_TABLE_REGION = "CREATE TABLE " + TABLE_REGION + "(" +
+            FIELD_CELL + " INTEGER PRIMARY KEY, " +
+            FIELD_VISITS + " INTEGER, " +
+            FIELD_LAST_VISIT + " INTEGER)";
+
+    private static final String SQL_RECORD_VISIT = "INSERT OR REPLACE INTO " + TABLE_REGION + "(" +
+            FIELD_CELL + ", " + FIELD_VISITS + ", " + FIELD_LAST_VISIT + ") VALUES (?, " +
+            "COALESCE((SELECT " + FIELD_VISITS + " FROM " + TABLE_REGION + " WHERE " + FIELD_CELL +
+            " = ?), 0) + 1, ?)";
+
+    private static final String SQL_CREATE_TABLE_QUEUE = "CREATE TABLE " + TABLE_QUEUE + "(" +
+            FIELD_MAC + " TEXT PRIMARY KEY, " +
+            FIELD_ADDED + " INTEGER)";
+
+    private static final String SQL_ENQUEUE = "INSERT OR IGNORE INTO " + TABLE_QUEUE + "(" +
+            FIELD_MAC + ", " + FIELD_ADDED + ") VALUES (?, ?)";
+
+    private static final String SQL_DEQUEUE = "DELETE FROM " + TABLE_QUEUE + " WHERE " +
+            FIELD_MAC + " = ?";
+
     private static final String SQL_UPDATE_1_TO_2 = "ALTER TABLE " + TABLE_NAME + " ADD " +
             FIELD_VERIFIED + " REAL";
 
+    private final Context context;
+    private final WifiLocationCache cache = new WifiLocationCache(CACHE_CAPACITY);
+    private final ReliabilityIndex reliability = new ReliabilityIndex();
+    private final LatencyHistogram readLatency = new LatencyHistogram();
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "AppleNlpDatabaseWriter");
+            thread.setDaemon(true);
+            writerThread = thread;
+            return thread;
+        }
+    });
+    private volatile Thread writerThread;
+    private volatile SQLiteDatabase reader;
+    private volatile boolean ready;
+    private volatile long openFailedAt;
+    private int rowsSinceCheckpoint;
+
     public WifiLocationDatabase(Context context) {
-        super(context, "wifiloc.db", null, DATABASE_VERSION);
+        this(context, "wifiloc.db");
+    }
+
+    /**
+     * @param name file name of the database, only different from the default for tests
+     */
+    public WifiLocationDatabase(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+        this.context = context;
+        if (Build.VERSION.SDK_INT >= 16) {
+            setWriteAheadLoggingEnabled(true);
+        }
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(SQL_CREATE_TABLE);
+        db.execSQL(SQL_CREATE_INDEX_POSITION);
+        db.execSQL(SQL_CREATE_TABLE_REGION);
+        db.execSQL(SQL_CREATE_TABLE_QUEUE);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (!WAL_SUPPORTED || db.isReadOnly()) return;
+        if (Build.VERSION.SDK_INT < 16) {
+            db.enableWriteAheadLogging();
+        }
+        DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint=0", null);
+        DatabaseUtils.longForQuery(db, "PRAGMA journal_size_limit=" + JOURNAL_SIZE_LIMIT, null);
+    }
+
+    /**
+     * @return connection used for all reads. With write-ahead logging this is a separate
+     * read-only connection, so reads never wait for the writer thread.
+     */
+    private SQLiteDatabase getReader() {
+        if (!WAL_SUPPORTED) return getReadableDatabase();
+        SQLiteDatabase db = reader;
+        if (db == null || !db.isOpen()) {
+            synchronized (this) {
+                db = reader;
+                if (db == null || !db.isOpen()) {
+                    // Opening the writable database first makes sure the file exists and is up
+                    // to date
+                    String path = getWritableDatabase().getPath();
+                    reader = db = SQLiteDatabase.openDatabase(path, null,
+                            SQLiteDatabase.OPEN_READONLY);
+                }
+            }
+        }
+        return db;
+    }
+
+    /**
+     * Run the given task on the writer thread and wait for it to finish. The write is completed
+     * even if the calling thread is interrupted while waiting.
+     */
+    private <T> T write(Callable<T> task) {
+        if (Thread.currentThread() == writerThread) {
+            try {
+                return task.call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+        Future<T> future = writer.submit(task);
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    private void onRowsWritten(SQLiteDatabase db, int rows) {
+        rowsSinceCheckpoint += rows;
+        if (WAL_SUPPORTED && rowsSinceCheckpoint >= CHECKPOINT_ROWS) {
+            checkpoint(db);
+        }
+    }
+
+    private void checkpoint(SQLiteDatabase db) {
+        long start = SystemClock.elapsedRealtime();
+        DatabaseUtils.longForQuery(db, "PRAGMA wal_checkpoint(PASSIVE)", null);
+        Log.d(TAG, "Checkpoint after " + rowsSinceCheckpoint + " rows took " +
+                (SystemClock.elapsedRealtime() - start) + "ms");
+        rowsSinceCheckpoint = 0;
+    }
+
+    /**
+     * Load the snapshot of recently used locations and open the database on the writer thread.
+     * Until {@link #isReady()}, only cached locations are available through
+     * {@link #getCached(String)}.
+     */
+    public void openAsync() {
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.elapsedRealtime();
+                try {
+                    int count = cache.readSnapshot(new File(context.getFilesDir(), SNAPSHOT_FILE));
+                    Log.d(TAG, "Loaded " + count + " locations from snapshot in " +
+                            (SystemClock.elapsedRealtime() - start) + "ms");
+                } catch (IOException e) {
+                    Log.w(TAG, e);
+                }
+                try {
+                    Log.d(TAG, "Loaded " + reliability.read(new File(context.getFilesDir(),
+                            RELIABILITY_FILE)) + " reliability scores");
+                } catch (IOException e) {
+                    Log.w(TAG, e);
+                }
+                open(start);
+            }
+        });
+    }
+
+    /**
+     * Open the database on the writer thread. Only marks it ready on success, on failure the
+     * next {@link #isReady()} after {@link #OPEN_RETRY_DELAY} tries again.
+     */
+    private void open(long start) {
+        try {
+            getWritableDatabase();
+            getReader();
+            ready = true;
+            Log.d(TAG, "Database opened after " + (SystemClock.elapsedRealtime() - start) + "ms");
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Opening database failed", e);
+            openFailedAt = SystemClock.elapsedRealtime();
+        }
+    }
+
+    public boolean isReady() {
+        if (!ready && openFailedAt != 0 &&
+                SystemClock.elapsedRealtime() - openFailedAt > OPEN_RETRY_DELAY) {
+            openFailedAt = 0;
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    open(SystemClock.elapsedRealtime());
+                }
+            });
+        }
+        return ready;
+    }
+
+    /**
+     * Persist the most recently used locations, to be loaded by {@link #openAsync()} on the next
+     * start. Runs on the writer thread.
+     */
+    public void saveSnapshot() {
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int count = cache.writeSnapshot(new File(context.getFilesDir(), SNAPSHOT_FILE),
+                            SNAPSHOT_SIZE);
+                    Log.d(TAG, "Saved " + count + " locations to snapshot");
+                } catch (IOException e) {
+                    Log.w(TAG, e);
+                }
+                try {
+                    reliability.write(new File(context.getFilesDir(), RELIABILITY_FILE));
+                } catch (IOException e) {
+                    Log.w(TAG, e);
+                }
+            }
+        });
+    }
+
+    public WifiLocationCache getCache() {
+        return cache;
+    }
+
+    public ReliabilityIndex getReliability() {
+        return reliability;
+    }
+
+    /**
+     * @return the location from the in-memory tier only, without touching the database
+     */
+    public Location getCached(String mac) {
+        return cache.get(mac);
+    }
+
+    /**
+     * @return latency of single location lookups through {@link #get(String)}
+     */
+    public LatencyHistogram getReadLatency() {
+        return readLatency;
     }
 
     public Location get(String mac) {
-        Cursor cursor = getReadableDatabase().query(TABLE_NAME, null, FIELD_MAC + "=?",
+        Location cached = cache.get(mac);
+        if (cached != null) return cached;
+        return getStored(mac);
+    }
+
+    /**
+     * @return the location from the database, bypassing the in-memory tier. A found location is
+     * added to the in-memory tier.
+     */
+    public Location getStored(String mac) {
+        // Not in the database, until something is ingested for it
+        if (cache.isMissing(mac)) return null;
+        long epoch = cache.getMissingEpoch();
+        long start = System.nanoTime();
+        Cursor cursor = getReader().query(TABLE_NAME, null, FIELD_MAC + "=?",
                 new String[]{mac}, null, null, null);
+        Location location = null;
         if (cursor != null) {
             if (cursor.moveToNext()) {
-                Location location = getLocation(cursor);
-                cursor.close();
-                return location;
+                location = getLocation(cursor);
             }
             cursor.close();
         }
-        return null;
+        readLatency.record(System.nanoTime() - start);
+        if (location != null) {
+            cache.put(location);
+        } else {
+            cache.markMissing(mac, epoch);
+        }
+        return location;
     }
 
     private Location getLocation(Cursor cursor) {
@@ -128,6 +457,18 @@ public class WifiLocationDatabase extends SQLiteOpenHelper {
             db.execSQL(SQL_UPDATE_1_TO_2);
             oldVersion = 2;
         }
+        if (oldVersion == 2) {
+            db.execSQL(SQL_CREATE_INDEX_POSITION);
+            oldVersion = 3;
+        }
+        if (oldVersion == 3) {
+            db.execSQL(SQL_CREATE_TABLE_REGION);
+            oldVersion = 4;
+        }
+        if (oldVersion == 4) {
+            db.execSQL(SQL_CREATE_TABLE_QUEUE);
+            oldVersion = 5;
+        }
         if (oldVersion != newVersion) {
             throw new RuntimeException("Upgrade not supported, sorry!");
         }
@@ -139,7 +480,8 @@ public class WifiLocationDatabase extends SQLiteOpenHelper {
                 FIELD_LATITUDE + "-(" + location.getLatitude() + "))+(" + FIELD_LONGITUDE + "-("
                 + location.getLongitude() + "))*(" + FIELD_LONGITUDE + "-(" + location
                 .getLongitude() + ")))";
-        Cursor cursor = getReadableDatabase().query(TABLE_NAME, null, FIELD_TIME + " > ?", new String[]{Float.toString(System.currentTimeMillis() - maxAge)}, null, null,
+        Cursor cursor = getReader().query(TABLE_NAME, null, FIELD_TIME + " > ?",
+                new String[]{Float.toString(System.currentTimeMillis() - maxAge)}, null, null,
                 order, Integer.toString(limit));
         if (cursor != null) {
             List<Location> locations = new ArrayList<Location>();
@@ -152,23 +494,359 @@ public class WifiLocationDatabase extends SQLiteOpenHelper {
         return null;
     }
 
+    /**
+     * @return all known locations in the given bounding box, excluding those unknown to Apple
+     */
+    public List<Location> getInArea(double minLatitude, double minLongitude, double maxLatitude,
+                                    double maxLongitude) {
+        Cursor cursor = getReader().query(TABLE_NAME, null, FIELD_LATITUDE +
+                        " BETWEEN ? AND ? AND " + FIELD_LONGITUDE + " BETWEEN ? AND ? AND " +
+                        FIELD_ACCURACY + " > 0",
+                new String[]{Double.toString(minLatitude), Double.toString(maxLatitude),
+                        Double.toString(minLongitude), Double.toString(maxLongitude)},
+                null, null, null);
+        List<Location> locations = new ArrayList<Location>();
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                locations.add(getLocation(cursor));
+            }
+            cursor.close();
+        }
+        return locations;
+    }
+
+    /**
+     * Count a visit of the given region cell. Runs on the writer thread.
+     */
+    public void recordVisit(final long cell, final long time) {
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    getWritableDatabase().execSQL(SQL_RECORD_VISIT, new Object[]{cell, cell, time});
+                } catch (RuntimeException e) {
+                    Log.w(TAG, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return cell key and visit count of the most visited region cells
+     */
+    public List<long[]> getTopRegions(int limit, int minVisits) {
+        Cursor cursor = getReader().query(TABLE_REGION, new String[]{FIELD_CELL, FIELD_VISITS},
+                FIELD_VISITS + " >= ?", new String[]{Integer.toString(minVisits)}, null, null,
+                FIELD_VISITS + " DESC", Integer.toString(limit));
+        List<long[]> regions = new ArrayList<long[]>();
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                regions.add(new long[]{cursor.getLong(0), cursor.getLong(1)});
+            }
+            cursor.close();
+        }
+        return regions;
+    }
+
+    /**
+     * Persist MAC addresses waiting for retrieval. Runs on the writer thread.
+     */
+    public void enqueue(Collection<String> macs) {
+        updateQueue(true, new ArrayList<String>(macs));
+    }
+
+    /**
+     * Remove MAC addresses from the persisted retrieval queue. Runs on the writer thread.
+     */
+    public void dequeue(Collection<String> macs) {
+        updateQueue(false, new ArrayList<String>(macs));
+    }
+
+    private void updateQueue(final boolean add, final List<String> macs) {
+        if (macs.isEmpty()) return;
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SQLiteDatabase db = getWritableDatabase();
+                    SQLiteStatement statement = db.compileStatement(add ? SQL_ENQUEUE :
+                            SQL_DEQUEUE);
+                    long now = System.currentTimeMillis();
+                    db.beginTransaction();
+                    try {
+                        for (String mac : macs) {
+                            statement.bindString(1, mac);
+                            if (add) statement.bindLong(2, now);
+                            statement.execute();
+                        }
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                        statement.close();
+                    }
+                } catch (RuntimeException e) {
+                    Log.w(TAG, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return up to limit MAC addresses persisted by {@link #enqueue(Collection)}, oldest first
+     */
+    public Set<String> getQueued(int limit) {
+        Cursor cursor = getReader().query(TABLE_QUEUE, new String[]{FIELD_MAC}, null, null, null,
+                null, FIELD_ADDED, String.valueOf(limit));
+        Set<String> macs = new LinkedHashSet<String>();
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                macs.add(cursor.getString(0));
+            }
+            cursor.close();
+        }
+        return macs;
+    }
+
+    /**
+     * Wait until all writes queued so far are committed.
+     */
+    public void flush() {
+        write(new Callable<Void>() {
+            @Override
+            public Void call() {
+                return null;
+            }
+        });
+    }
+
     public Editor edit() {
         return new Editor();
     }
 
-    public class Editor {
-        private final SQLiteDatabase db;
+    /**
+     * Store freshly retrieved locations.
+     * <p>
+     * Rows are written through compiled statements in chunks of {@link #INGEST_CHUNK_SIZE} per
+     * transaction. Rows whose coordinates and accuracy did not change are not rewritten, only
+     * their retrieval time is updated, so they also keep their verification time.
+     * <p>
+     * The write happens on the writer thread, this call blocks until it is committed.
+     *
+     * @param locations locations as returned by {@link LocationRetriever}
+     * @return statistics about this ingest
+     */
+    public IngestResult ingest(final Collection<Location> locations) {
+        return write(new Callable<IngestResult>() {
+            @Override
+            public IngestResult call() {
+                return doIngest(locations);
+            }
+        });
+    }
 
-        public Editor() {
-            db = getWritableDatabase();
-            db.beginTransaction();
+    /**
+     * Like {@link #ingest(Collection)}, but returns as soon as the write is queued.
+     */
+    public Future<IngestResult> ingestAsync(final Collection<Location> locations) {
+        return writer.submit(new Callable<IngestResult>() {
+            @Override
+            public IngestResult call() {
+                return doIngest(locations);
+            }
+        });
+    }
+
+    private IngestResult doIngest(Collection<Location> locations) {
+        long start = SystemClock.elapsedRealtime();
+        int written = 0, unchanged = 0, jumps = 0;
+        SQLiteDatabase db = getWritableDatabase();
+        SQLiteStatement insert = db.compileStatement(SQL_INSERT);
+        SQLiteStatement touch = db.compileStatement(SQL_TOUCH);
+        try {
+            Iterator<Location> iterator = locations.iterator();
+            List<Location> chunk = new ArrayList<Location>(INGEST_CHUNK_SIZE);
+            List<String> macs = new ArrayList<String>(INGEST_CHUNK_SIZE);
+            while (iterator.hasNext()) {
+                chunk.clear();
+                macs.clear();
+                while (iterator.hasNext() && chunk.size() < INGEST_CHUNK_SIZE) {
+                    Location location = iterator.next();
+                    if (location != null) chunk.add(location);
+                }
+                Map<String, double[]> existing = getExisting(db, chunk);
+                db.beginTransaction();
+                try {
+                    for (Location location : chunk) {
+                        String mac = location.getExtras().getString(LocationRetriever
+                                .EXTRA_MAC_ADDRESS);
+                        macs.add(mac);
+                        if (isUnchanged(existing.get(mac), location)) {
+                            touch.bindLong(1, location.getTime());
+                            touch.bindString(2, mac);
+                            touch.execute();
+                            cache.touch(mac, location.getTime());
+                            unchanged++;
+                        } else {
+                            if (isJump(existing.get(mac), location)) {
+                                reliability.onJump(mac);
+                                jumps++;
+                            }
+                            bindLocation(insert, mac, location);
+                            insert.execute();
+                            cache.update(location);
+                            written++;
+                        }
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                // Only now readers can see the rows, clearing earlier lets a reader still on the
+                // old snapshot mark them missing again
+                cache.clearMissing(macs);
+                onRowsWritten(db, chunk.size());
+            }
+        } finally {
+            insert.close();
+            touch.close();
         }
+        IngestResult result = new IngestResult(written, unchanged, jumps,
+                SystemClock.elapsedRealtime() - start);
+        Log.d(TAG, "Ingested " + result);
+        return result;
+    }
+
+    private static Map<String, double[]> getExisting(SQLiteDatabase db, List<Location> chunk) {
+        Map<String, double[]> existing = new HashMap<String, double[]>();
+        if (chunk.isEmpty()) return existing;
+        String[] args = new String[chunk.size()];
+        StringBuilder sb = new StringBuilder(FIELD_MAC).append(" IN (");
+        for (int i = 0; i < args.length; i++) {
+            args[i] = chunk.get(i).getExtras().getString(LocationRetriever.EXTRA_MAC_ADDRESS);
+            sb.append(i == 0 ? "?" : ",?");
+        }
+        sb.append(")");
+        Cursor cursor = db.query(TABLE_NAME, new String[]{FIELD_MAC, FIELD_LATITUDE,
+                FIELD_LONGITUDE, FIELD_ACCURACY}, sb.toString(), args, null, null, null);
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                existing.put(cursor.getString(0), new double[]{cursor.getDouble(1),
+                        cursor.getDouble(2), cursor.isNull(3) ? Double.NaN : cursor.getFloat(3)});
+            }
+            cursor.close();
+        }
+        return existing;
+    }
+
+    private static boolean isUnchanged(double[] existing, Location location) {
+        if (existing == null) return false;
+        if (existing[0] != location.getLatitude() || existing[1] != location.getLongitude()) {
+            return false;
+        }
+        if (location.hasAccuracy()) {
+            return existing[2] == location.getAccuracy();
+        }
+        return Double.isNaN(existing[2]);
+    }
+
+    /**
+     * @return true if both the stored and the new location are known and far apart, i.e. the
+     * access point was moved or is mobile
+     */
+    private static boolean isJump(double[] existing, Location location) {
+        if (existing == null || Double.isNaN(existing[2]) || existing[2] == -1) return false;
+        if (!location.hasAccuracy() || location.getAccuracy() == -1) return false;
+        float[] distance = new float[1];
+        Location.distanceBetween(existing[0], existing[1], location.getLatitude(),
+                location.getLongitude(), distance);
+        return distance[0] > JUMP_DISTANCE;
+    }
+
+    private static void bindLocation(SQLiteStatement statement, String mac, Location location) {
+        statement.bindString(1, mac);
+        statement.bindDouble(2, location.getLatitude());
+        statement.bindDouble(3, location.getLongitude());
+        if (location.hasAltitude()) {
+            statement.bindDouble(4, location.getAltitude());
+        } else {
+            statement.bindNull(4);
+        }
+        if (location.hasAccuracy()) {
+            statement.bindDouble(5, location.getAccuracy());
+        } else {
+            statement.bindNull(5);
+        }
+        statement.bindLong(6, location.getTime());
+        statement.bindLong(7, location.getExtras().getLong(LocationRetriever.EXTRA_VERIFIED_TIME));
+    }
+
+    public static class IngestResult {
+        public final int written;
+        public final int unchanged;
+        /**
+         * Number of known access points whose position jumped, see {@link ReliabilityIndex}
+         */
+        public final int jumps;
+        public final long durationMillis;
+
+        IngestResult(int written, int unchanged, int jumps, long durationMillis) {
+            this.written = written;
+            this.unchanged = unchanged;
+            this.jumps = jumps;
+            this.durationMillis = durationMillis;
+        }
+
+        public float getRowsPerSecond() {
+            return (written + unchanged) * 1000F / Math.max(durationMillis, 1);
+        }
+
+        @Override
+        public String toString() {
+            return (written + unchanged) + " rows (" + unchanged + " unchanged, " + jumps +
+                    " jumped) in " + durationMillis + "ms, " + Math.round(getRowsPerSecond()) +
+                    " rows/s";
+        }
+    }
+
+    /**
+     * Write everything pending, checkpoint and stop the writer thread. The database must not be
+     * used afterwards.
+     */
+    @Override
+    public void close() {
+        // Not synchronized: the writer thread needs the helper's lock to finish the checkpoint
+        write(new Callable<Void>() {
+            @Override
+            public Void call() {
+                if (WAL_SUPPORTED && rowsSinceCheckpoint > 0) {
+                    checkpoint(getWritableDatabase());
+                }
+                return null;
+            }
+        });
+        writer.shutdown();
+        synchronized (this) {
+            if (reader != null) {
+                reader.close();
+                reader = null;
+            }
+            super.close();
+        }
+    }
+
+    /**
+     * Collects locations to be written. Nothing is written before {@link #end()}, which commits
+     * all of them in one transaction on the writer thread without waiting for it.
+     */
+    public class Editor {
+        private final List<ContentValues> rows = new ArrayList<ContentValues>();
+        private final List<String> macs = new ArrayList<String>();
 
         public void put(Location location) {
             if (location == null) return;
             ContentValues values = new ContentValues();
-            values.put(FIELD_MAC, location.getExtras().getString(LocationRetriever
-                    .EXTRA_MAC_ADDRESS));
+            String mac = location.getExtras().getString(LocationRetriever.EXTRA_MAC_ADDRESS);
+            values.put(FIELD_MAC, mac);
             values.put(FIELD_LATITUDE, location.getLatitude());
             values.put(FIELD_LONGITUDE, location.getLongitude());
             if (location.hasAltitude()) {
@@ -180,14 +858,35 @@ public class WifiLocationDatabase extends SQLiteOpenHelper {
             values.put(FIELD_TIME, location.getTime());
             values.put(FIELD_VERIFIED, location.getExtras().getLong(LocationRetriever
                     .EXTRA_VERIFIED_TIME));
-            db.insertWithOnConflict(TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            rows.add(values);
+            macs.add(mac);
+            cache.update(location);
         }
 
         public void end() {
-            db.setTransactionSuccessful();
-            db.endTransaction();
+            if (rows.isEmpty()) return;
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        SQLiteDatabase db = getWritableDatabase();
+                        db.beginTransaction();
+                        try {
+                            for (ContentValues values : rows) {
+                                db.insertWithOnConflict(TABLE_NAME, null, values,
+                                        SQLiteDatabase.CONFLICT_REPLACE);
+                            }
+                            db.setTransactionSuccessful();
+                        } finally {
+                            db.endTransaction();
+                        }
+                        cache.clearMissing(macs);
+                        onRowsWritten(db, rows.size());
+                    } catch (RuntimeException e) {
+                        Log.w(TAG, e);
+                    }
+                }
+            });
         }
     }
-
-
 }
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2013-2018 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.backend.apple;
+
+import android.location.Location;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.microg.nlp.api.LocationHelper;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.microg.nlp.api.WiFiBackendHelper.WiFi;
+
+@RunWith(RobolectricTestRunner.class)
+public class FingerprintIndexTest {
+    private static final int SCAN_SIZE = 8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * A scan of access points that no other scan number shares.
+     */
+    private static WiFi[] scan(int number) {
+        WiFi[] wiFis = new WiFi[SCAN_SIZE];
+        for (int i = 0; i < SCAN_SIZE; i++) {
+            wiFis[i] = new WiFi(String.format("02:00:%02x:%02x:00:%02x", number >> 8 & 0xff,
+                    number & 0xff, i), -40 - i * 5, 2412);
+        }
+        return wiFis;
+    }
+
+    private static Location fix(double latitude, double longitude, float accuracy) {
+        return LocationHelper.create("test", latitude, longitude, accuracy);
+    }
+
+    @Test
+    public void queryFindsLearnedScan() {
+        FingerprintIndex index = new FingerprintIndex(16);
+        index.learn(scan(1), fix(50.0, 8.0, 20));
+        index.learn(scan(2), fix(51.0, 9.0, 30));
+        Location location = index.query(scan(2), "test");
+        assertNotNull(location);
+        assertEquals(51.0, location.getLatitude(), 1E-9);
+        assertEquals(9.0, location.getLongitude(), 1E-9);
+        assertEquals(30, location.getAccuracy(), 0.01);
+        assertNull(index.query(scan(3), "test"));
+    }
+
+    @Test
+    public void similarScanIsMerged() {
+        FingerprintIndex index = new FingerprintIndex(16);
+        index.learn(scan(1), fix(50.0, 8.0, 20));
+        index.learn(scan(1), fix(50.002, 8.002, 40));
+        assertEquals(1, index.size());
+        Location location = index.query(scan(1), "test");
+        assertNotNull(location);
+        assertEquals(50.001, location.getLatitude(), 1E-9);
+        assertEquals(8.001, location.getLongitude(), 1E-9);
+        assertEquals(30, location.getAccuracy(), 0.01);
+    }
+
+    @Test
+    public void overwrittenEntriesLeaveNoBuckets() {
+        FingerprintIndex index = new FingerprintIndex(4);
+        for (int i = 0; i < 200; i++) {
+            index.learn(scan(i), fix(50.0 + i * 0.01, 8.0, 25));
+        }
+        assertEquals(4, index.size());
+        // Eight bands per entry at most, the keys of replaced entries are gone
+        assertTrue(index.getBucketCount() <= 4 * 8);
+        assertNull(index.query(scan(0), "test"));
+        assertNotNull(index.query(scan(199), "test"));
+    }
+
+    @Test
+    public void writeAndReadRoundTrip() throws Exception {
+        FingerprintIndex index = new FingerprintIndex(16);
+        for (int i = 0; i < 10; i++) {
+            index.learn(scan(i), fix(50.0 + i * 0.01, 8.0 - i * 0.01, 20 + i));
+        }
+        File file = new File(folder.getRoot(), "fingerprints.bin");
+        index.write(file);
+        assertTrue(file.exists());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        FingerprintIndex restored = new FingerprintIndex(16);
+        assertEquals(10, restored.read(file));
+        assertEquals(10, restored.size());
+        for (int i = 0; i < 10; i++) {
+            Location expected = index.query(scan(i), "test");
+            Location actual = restored.query(scan(i), "test");
+            assertNotNull(actual);
+            assertEquals(expected.getLatitude(), actual.getLatitude(), 1E-9);
+            assertEquals(expected.getLongitude(), actual.getLongitude(), 1E-9);
+            assertEquals(expected.getAccuracy(), actual.getAccuracy(), 0.01);
+        }
+    }
+
+    @Test
+    public void readIntoSmallerIndexKeepsNewest() throws Exception {
+        FingerprintIndex index = new FingerprintIndex(16);
+        for (int i = 0; i < 12; i++) {
+            index.learn(scan(i), fix(50.0 + i * 0.01, 8.0, 25));
+        }
+        File file = new File(folder.getRoot(), "fingerprints.bin");
+        index.write(file);
+
+        FingerprintIndex restored = new FingerprintIndex(4);
+        assertEquals(12, restored.read(file));
+        assertEquals(4, restored.size());
+        assertTrue(restored.getBucketCount() <= 4 * 8);
+        assertNull(restored.query(scan(0), "test"));
+        assertNotNull(restored.query(scan(11), "test"));
+    }
+
+    @Test
+    public void readMissingFile() throws Exception {
+        FingerprintIndex index = new FingerprintIndex(16);
+        assertEquals(0, index.read(new File(folder.getRoot(), "missing.bin")));
+        assertEquals(0, index.size());
+    }
+}
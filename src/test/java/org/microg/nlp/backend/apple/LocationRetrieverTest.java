@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2013-2018 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.backend.apple;
+
+import android.location.Location;
+
+import com.squareup.wire.Wire;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Sends requests to a local stub of the location service, which checks the framing of each
+ * request and answers with a location for every well-formed MAC address in it.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class LocationRetrieverTest {
+    private static final String PATH = "/clls/wloc";
+    private static final byte[] MAGIC = {0, 1, 0, 5, 101, 110, 95, 85, 83, 0, 0, 0, 11, 52, 46, 50,
+            46, 49, 46, 56, 67, 49, 52, 56, 0, 0, 0, 1, 0, 0};
+    private static final int HEADER_SIZE = MAGIC.length + 2;
+    private static final int RESPONSE_HEADER_SIZE = 10;
+
+    private final List<byte[]> bodies = new ArrayList<>();
+    /**
+     * Sent instead of the regular response, if set.
+     */
+    private volatile byte[] rawResponse;
+    private HttpServer server;
+    private LocationRetriever retriever;
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext(PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    respond(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+        retriever = new LocationRetriever("http://127.0.0.1:" + server.getAddress().getPort() + PATH);
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+        byte[] body = readAll(exchange.getRequestBody());
+        synchronized (bodies) {
+            bodies.add(body);
+        }
+        int length = body.length < HEADER_SIZE ? -1 :
+                (body[MAGIC.length] & 0xff) << 8 | body[MAGIC.length + 1] & 0xff;
+        if (length != body.length - HEADER_SIZE ||
+                !Arrays.equals(MAGIC, Arrays.copyOf(body, MAGIC.length))) {
+            exchange.sendResponseHeaders(400, -1);
+            return;
+        }
+        if (rawResponse != null) {
+            exchange.sendResponseHeaders(200, rawResponse.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(rawResponse);
+            out.close();
+            return;
+        }
+        Request request = new Wire().parseFrom(Arrays.copyOfRange(body, HEADER_SIZE, body.length),
+                Request.class);
+        List<Response.ResponseWifi> wifis = new ArrayList<>();
+        for (int i = 0; i < request.wifis.size(); i++) {
+            String mac = request.wifis.get(i).mac;
+            // Filler entries of the boundary tests
+            if (mac == null || mac.length() != 17) continue;
+            wifis.add(new Response.ResponseWifi.Builder().mac(mac).location(
+                    new Response.ResponseWifi.WifiLocation.Builder()
+                            .latitude(5000000000L + i).longitude(800000000L + i).accuracy(30).build())
+                    .build());
+        }
+        byte[] message = new Response.Builder().wifis(wifis).build().toByteArray();
+        exchange.sendResponseHeaders(200, RESPONSE_HEADER_SIZE + message.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(new byte[RESPONSE_HEADER_SIZE]);
+        out.write(message);
+        out.close();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static String[] macs(int count) {
+        String[] macs = new String[count];
+        for (int i = 0; i < count; i++) {
+            macs[i] = WifiLocationCache.longToMac(0x020000000000L | i * 0x10001L);
+        }
+        return macs;
+    }
+
+    /**
+     * Valid MAC addresses, followed by a filler entry sized so the request message has exactly
+     * the given size.
+     */
+    private static String[] macsForSize(int size) {
+        String[] macs = Arrays.copyOf(macs(10), 11);
+        macs[10] = "";
+        int base = LocationRetriever.createRequest(macs).getSerializedSize();
+        StringBuilder filler = new StringBuilder();
+        while (filler.length() < size - base) {
+            filler.append('f');
+        }
+        macs[10] = filler.toString();
+        assertEquals(size, LocationRetriever.createRequest(macs).getSerializedSize());
+        return macs;
+    }
+
+    private byte[] lastBody() {
+        synchronized (bodies) {
+            return bodies.get(bodies.size() - 1);
+        }
+    }
+
+    private static void assertRetrieved(String[] macs, int expected, Collection<Location> locations) {
+        Set<String> returned = new HashSet<>();
+        for (Location location : locations) {
+            returned.add(location.getExtras().getString(LocationRetriever.EXTRA_MAC_ADDRESS));
+            assertEquals(30, location.getAccuracy(), 0);
+            assertTrue(location.getLatitude() >= 50 && location.getLatitude() < 51);
+        }
+        assertEquals(expected, locations.size());
+        for (int i = 0; i < expected; i++) {
+            assertTrue(macs[i], returned.contains(macs[i]));
+        }
+    }
+
+    private void assertFraming(int size) throws IOException {
+        String[] macs = macsForSize(size);
+        assertRetrieved(macs, 10, retriever.retrieveLocations(macs));
+        byte[] body = lastBody();
+        assertEquals(HEADER_SIZE + size, body.length);
+        assertArrayEquals(MAGIC, Arrays.copyOf(body, MAGIC.length));
+        assertEquals(size >> 8, body[MAGIC.length] & 0xff);
+        assertEquals(size & 0xff, body[MAGIC.length + 1] & 0xff);
+    }
+
+    @Test
+    public void largestOneByteLength() throws IOException {
+        assertFraming(255);
+    }
+
+    @Test
+    public void smallestTwoByteLength() throws IOException {
+        assertFraming(256);
+    }
+
+    @Test
+    public void batchOf300() throws IOException {
+        String[] macs = macs(300);
+        assertRetrieved(macs, 300, retriever.retrieveLocations(macs));
+        assertTrue(lastBody().length > 0xff + HEADER_SIZE);
+    }
+
+    @Test
+    public void largestBatch() throws IOException {
+        String[] macs = macs(LocationRetriever.MAX_MACS_PER_REQUEST);
+        assertRetrieved(macs, macs.length, retriever.retrieveLocations(macs));
+    }
+
+    @Test
+    public void oversizedAccessPointIsRejected() {
+        byte[] response = new byte[RESPONSE_HEADER_SIZE + 6];
+        // Field 2, length delimited, declaring 2^31 - 1 bytes
+        byte[] field = {0x12, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07};
+        System.arraycopy(field, 0, response, RESPONSE_HEADER_SIZE, field.length);
+        rawResponse = response;
+        try {
+            retriever.retrieveLocations(macs(1));
+            fail("Malformed response was accepted");
+        } catch (IOException expected) {
+            // Rejected without allocating the declared size
+        }
+    }
+
+    @Test
+    public void requestBeyondLengthFieldIsRejected() {
+        String[] macs = macs(4000);
+        assertTrue(LocationRetriever.createRequest(macs).getSerializedSize() > 0xffff);
+        try {
+            retriever.retrieveLocations(macs);
+            fail("Request larger than the 16 bit length was sent");
+        } catch (IOException expected) {
+            // Rejected before sending
+        }
+        synchronized (bodies) {
+            assertTrue(bodies.isEmpty());
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2013-2018 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.backend.apple;
+
+import android.location.Location;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class OfflineDatasetTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File writeCsv(String content) throws IOException {
+        File csv = folder.newFile("offline.csv");
+        FileWriter writer = new FileWriter(csv);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        return csv;
+    }
+
+    @Test
+    public void convertSkipsInvalidLinesAndDuplicates() throws Exception {
+        File csv = writeCsv("mac,latitude,longitude,accuracy\n" +
+                "00:11:22:33:44:02,50.2,8.2,30\n" +
+                "00:11:22:33:44:01,50.1,8.1\n" +
+                "not a mac,50.0,8.0,10\n" +
+                "00:11:22:33:44:03,broken,8.3,10\n" +
+                "00:11:22:33:44:04,50.4\n" +
+                "00:11:22:33:44:02,50.2,8.2,30\n" +
+                "\n");
+        File pack = new File(folder.getRoot(), "offline.pack");
+        assertEquals(2, OfflineDataset.convert(csv, pack));
+        assertFalse(new File(pack.getPath() + ".tmp").exists());
+
+        OfflineDataset dataset = new OfflineDataset();
+        assertEquals(2, dataset.open(pack, csv));
+        Location first = dataset.get("00:11:22:33:44:01");
+        assertNotNull(first);
+        assertEquals(50.1, first.getLatitude(), 1E-9);
+        assertEquals(8.1, first.getLongitude(), 1E-9);
+        // Default accuracy for lines without one
+        assertEquals(100, first.getAccuracy(), 0);
+        assertEquals("00:11:22:33:44:01", first.getExtras().getString(LocationRetriever.EXTRA_MAC_ADDRESS));
+        assertTrue(first.getExtras().getBoolean(OfflineDataset.EXTRA_OFFLINE));
+        Location second = dataset.get("00:11:22:33:44:02");
+        assertNotNull(second);
+        assertEquals(30, second.getAccuracy(), 0);
+        assertNull(dataset.get("00:11:22:33:44:03"));
+        assertNull(dataset.get("00:11:22:33:44:04"));
+        assertNull(dataset.get("invalid"));
+    }
+
+    @Test
+    public void convertSortsForBinarySearch() throws Exception {
+        Random random = new Random(42);
+        long[] macs = new long[5000];
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < macs.length; i++) {
+            // Distinct MACs in random order
+            macs[i] = (random.nextLong() & 0xffffff000000L) | i;
+            sb.append(String.format("%02x:%02x:%02x:%02x:%02x:%02x", macs[i] >> 40 & 0xff,
+                    macs[i] >> 32 & 0xff, macs[i] >> 24 & 0xff, macs[i] >> 16 & 0xff, macs[i] >> 8 & 0xff,
+                    macs[i] & 0xff)).append(',').append(i * 0.001).append(',').append(-i * 0.001)
+                    .append(",25\n");
+        }
+        File csv = writeCsv(sb.toString());
+        File pack = new File(folder.getRoot(), "offline.pack");
+        OfflineDataset dataset = new OfflineDataset();
+        assertEquals(macs.length, dataset.open(pack, csv));
+        assertTrue(pack.exists());
+        for (int i = 0; i < macs.length; i++) {
+            String mac = String.format("%02x:%02x:%02x:%02x:%02x:%02x", macs[i] >> 40 & 0xff,
+                    macs[i] >> 32 & 0xff, macs[i] >> 24 & 0xff, macs[i] >> 16 & 0xff, macs[i] >> 8 & 0xff,
+                    macs[i] & 0xff);
+            Location location = dataset.get(mac);
+            assertNotNull(mac, location);
+            assertEquals(i * 0.001, location.getLatitude(), 1E-9);
+            assertEquals(-i * 0.001, location.getLongitude(), 1E-9);
+        }
+    }
+
+    @Test
+    public void openWithoutDataset() throws Exception {
+        OfflineDataset dataset = new OfflineDataset();
+        assertEquals(0, dataset.open(new File(folder.getRoot(), "offline.pack"),
+                new File(folder.getRoot(), "offline.csv")));
+        assertNull(dataset.get("00:11:22:33:44:01"));
+    }
+}
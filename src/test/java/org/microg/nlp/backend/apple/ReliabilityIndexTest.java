@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2013-2018 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.backend.apple;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReliabilityIndexTest {
+    private static final long ONE_DAY = 24 * 60 * 60 * 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String mac(int i) {
+        return WifiLocationCache.longToMac(0x020000000000L | i);
+    }
+
+    /**
+     * Write a reliability file with the given score for each MAC address, last updated at the
+     * given time.
+     */
+    private File writeFile(int count, float score, long time) throws IOException {
+        File file = folder.newFile();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeInt(ReliabilityIndex.FILE_MAGIC);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                out.writeLong(WifiLocationCache.macToLong(mac(i)) + 1);
+                out.writeFloat(score);
+                out.writeLong(time);
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void everyVerdictCounts() {
+        ReliabilityIndex index = new ReliabilityIndex();
+        index.onDisagree(mac(1));
+        index.onDisagree(mac(1));
+        assertEquals(2, index.getScore(mac(1)), 0.01);
+        index.onAgree(mac(1));
+        assertEquals(1.5, index.getScore(mac(1)), 0.01);
+        // Agreeing with a clean record doesn't add an entry
+        index.onAgree(mac(2));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void jumpsDontSuppressVerdicts() {
+        ReliabilityIndex index = new ReliabilityIndex();
+        index.onJump(mac(1));
+        index.onAgree(mac(1));
+        assertEquals(2.5, index.getScore(mac(1)), 0.01);
+        index.onDisagree(mac(1));
+        assertEquals(3.5, index.getScore(mac(1)), 0.01);
+    }
+
+    @Test
+    public void jumpsMakeUnreliable() {
+        ReliabilityIndex index = new ReliabilityIndex();
+        index.onJump(mac(1));
+        assertFalse(index.isUnreliable(mac(1)));
+        index.onJump(mac(1));
+        assertTrue(index.isUnreliable(mac(1)));
+        assertEquals(1, index.getUnreliableCount());
+        assertFalse(index.isUnreliable(mac(2)));
+        assertFalse(index.isUnreliable("invalid"));
+    }
+
+    @Test
+    public void growsBeyondInitialCapacity() {
+        ReliabilityIndex index = new ReliabilityIndex();
+        for (int i = 0; i < 1000; i++) {
+            index.onJump(mac(i));
+        }
+        assertEquals(1000, index.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(mac(i), 3, index.getScore(mac(i)), 0.01);
+        }
+        assertEquals(0, index.getScore(mac(1000)), 0);
+    }
+
+    @Test
+    public void scoresDecayPerDay() throws Exception {
+        ReliabilityIndex index = new ReliabilityIndex();
+        long now = System.currentTimeMillis();
+        assertEquals(3, index.read(writeFile(3, 5, now - 2 * ONE_DAY)));
+        assertEquals(3, index.getScore(mac(0)), 0.01);
+        assertFalse(index.isUnreliable(mac(0)));
+
+        ReliabilityIndex expired = new ReliabilityIndex();
+        expired.read(writeFile(3, 5, now - 10 * ONE_DAY));
+        // Never below zero
+        assertEquals(0, expired.getScore(mac(0)), 0);
+    }
+
+    @Test
+    public void writeAndReadRoundTrip() throws Exception {
+        ReliabilityIndex index = new ReliabilityIndex();
+        for (int i = 0; i < 300; i++) {
+            index.onJump(mac(i));
+            if (i % 2 == 0) index.onJump(mac(i));
+        }
+        File file = new File(folder.getRoot(), "reliability.bin");
+        index.write(file);
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        ReliabilityIndex restored = new ReliabilityIndex();
+        assertEquals(300, restored.read(file));
+        assertEquals(300, restored.size());
+        assertEquals(150, restored.getUnreliableCount());
+        for (int i = 0; i < 300; i++) {
+            assertEquals(mac(i), index.getScore(mac(i)), restored.getScore(mac(i)), 0.01);
+        }
+    }
+
+    @Test
+    public void readIgnoresOtherFiles() throws Exception {
+        File file = folder.newFile();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeInt(0x12345678);
+            out.writeInt(1);
+        } finally {
+            out.close();
+        }
+        ReliabilityIndex index = new ReliabilityIndex();
+        assertEquals(0, index.read(file));
+        assertEquals(0, index.read(new File(folder.getRoot(), "missing.bin")));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void fullIndexPrunesDecayedEntries() throws Exception {
+        ReliabilityIndex index = new ReliabilityIndex();
+        // Recent, but below one: dropped when space is needed
+        assertEquals(ReliabilityIndex.MAX_SIZE, index.read(writeFile(ReliabilityIndex.MAX_SIZE, 0.5F,
+                System.currentTimeMillis())));
+        assertEquals(ReliabilityIndex.MAX_SIZE, index.size());
+        index.onJump(mac(ReliabilityIndex.MAX_SIZE));
+        assertEquals(1, index.size());
+        assertEquals(3, index.getScore(mac(ReliabilityIndex.MAX_SIZE)), 0.01);
+    }
+
+    @Test
+    public void fullIndexRejectsNewEntries() throws Exception {
+        ReliabilityIndex index = new ReliabilityIndex();
+        // More entries than fit, the rest of the file is skipped
+        assertEquals(ReliabilityIndex.MAX_SIZE, index.read(writeFile(ReliabilityIndex.MAX_SIZE + 100, 5,
+                System.currentTimeMillis())));
+        assertEquals(ReliabilityIndex.MAX_SIZE, index.size());
+        index.onJump(mac(ReliabilityIndex.MAX_SIZE + 1000));
+        assertEquals(ReliabilityIndex.MAX_SIZE, index.size());
+        assertEquals(0, index.getScore(mac(ReliabilityIndex.MAX_SIZE + 1000)), 0);
+        // Known entries are still updated
+        index.onJump(mac(0));
+        assertEquals(8, index.getScore(mac(0)), 0.01);
+    }
+}
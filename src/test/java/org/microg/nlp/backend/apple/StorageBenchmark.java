@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2013-2018 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.backend.apple;
+
+import android.content.Context;
+import android.location.Location;
+import android.os.Bundle;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.microg.nlp.api.LocationHelper;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Measures {@link WifiLocationDatabase} on synthetic datasets of growing size.
+ * <p>
+ * Every size gets a fresh database file, filled with a generated city: dense urban cores,
+ * sparser suburbs around them and access points along highways between the cores. On each, bulk
+ * ingest, single lookups, lookups of whole scans, {@link WifiLocationDatabase#getNear} and
+ * verification writes are timed. The benchmark database is deleted afterwards.
+ * <p>
+ * Runs on the host against Robolectric's SQLite, without a device. It is skipped unless sizes
+ * are given, e.g. {@code ./gradlew testDebugUnitTest --tests '*StorageBenchmark'
+ * -PstorageBenchmark=10000,100000,1000000}. Results are printed to the test output.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class StorageBenchmark {
+    private static final String SIZES_PROPERTY = "storageBenchmark";
+    private static final String DATABASE_NAME = "benchmark.db";
+    private static final int INGEST_BATCH = 10000;
+    private static final int LOOKUPS = 5000;
+    private static final int SCANS = 500;
+    private static final int SCAN_SIZE = 20;
+    private static final int NEAR_QUERIES = 500;
+    private static final int VERIFICATIONS = 200;
+    /**
+     * Rows written in the background while read latency is measured.
+     */
+    private static final int CONCURRENT_INGEST = 10000;
+
+    @Test
+    public void benchmark() throws Exception {
+        String sizes = System.getProperty(SIZES_PROPERTY);
+        assumeTrue("No sizes given in -P" + SIZES_PROPERTY, sizes != null && !sizes.trim().isEmpty());
+        Context context = RuntimeEnvironment.application;
+        for (String size : sizes.split(",")) {
+            try {
+                System.out.println(runSize(context, Integer.parseInt(size.trim())));
+            } finally {
+                context.deleteDatabase(DATABASE_NAME);
+            }
+        }
+    }
+
+    private static String runSize(Context context, int size) throws Exception {
+        context.deleteDatabase(DATABASE_NAME);
+        WifiLocationDatabase database = new WifiLocationDatabase(context, DATABASE_NAME);
+        try {
+            SyntheticCity city = new SyntheticCity(size);
+            Random random = new Random(size);
+
+            // Robolectric's SystemClock doesn't advance on its own
+            long start = System.nanoTime();
+            List<Location> batch = new ArrayList<>(INGEST_BATCH);
+            for (int i = 0; i < size; i++) {
+                batch.add(city.get(i));
+                if (batch.size() == INGEST_BATCH || i == size - 1) {
+                    database.ingest(batch);
+                    batch.clear();
+                }
+            }
+            database.flush();
+            long ingestMillis = Math.max((System.nanoTime() - start) / 1000000, 1);
+            assertNotNull(database.getStored(city.getMac(size - 1)));
+
+            LatencyHistogram lookup = new LatencyHistogram();
+            for (int i = 0; i < LOOKUPS; i++) {
+                String mac = city.getMac(random.nextInt(size));
+                long t = System.nanoTime();
+                database.getStored(mac);
+                lookup.record(System.nanoTime() - t);
+            }
+
+            // Reads must not wait for the writer thread, even during a large ingest
+            List<Location> extra = new ArrayList<>(CONCURRENT_INGEST);
+            for (int i = 0; i < CONCURRENT_INGEST; i++) {
+                extra.add(city.get(size + i));
+            }
+            LatencyHistogram concurrent = new LatencyHistogram();
+            Future<WifiLocationDatabase.IngestResult> pending = database.ingestAsync(extra);
+            while (!pending.isDone()) {
+                String mac = city.getMac(random.nextInt(size));
+                long t = System.nanoTime();
+                database.getStored(mac);
+                concurrent.record(System.nanoTime() - t);
+            }
+            database.flush();
+            assertEquals(CONCURRENT_INGEST, pending.get().written);
+
+            // Neighbouring indices are generated close to each other, like the access points of a scan
+            LatencyHistogram scan = new LatencyHistogram();
+            for (int i = 0; i < SCANS; i++) {
+                int first = random.nextInt(Math.max(size - SCAN_SIZE * 4, 1));
+                long t = System.nanoTime();
+                for (int j = 0; j < SCAN_SIZE; j++) {
+                    database.getStored(city.getMac(Math.min(first + random.nextInt(SCAN_SIZE * 4), size - 1)));
+                }
+                scan.record(System.nanoTime() - t);
+            }
+
+            LatencyHistogram near = new LatencyHistogram();
+            for (int i = 0; i < NEAR_QUERIES; i++) {
+                Location point = city.get(random.nextInt(size));
+                long t = System.nanoTime();
+                database.getNear(point, 10, Long.MAX_VALUE / 2);
+                near.record(System.nanoTime() - t);
+            }
+
+            LatencyHistogram verify = new LatencyHistogram();
+            for (int i = 0; i < VERIFICATIONS; i++) {
+                int first = random.nextInt(Math.max(size - 3, 1));
+                long t = System.nanoTime();
+                WifiLocationDatabase.Editor editor = database.edit();
+                for (int j = 0; j < 3 && first + j < size; j++) {
+                    Location location = city.get(first + j);
+                    location.getExtras().putLong(LocationRetriever.EXTRA_VERIFIED_TIME, System.currentTimeMillis());
+                    editor.put(location);
+                }
+                editor.end();
+                database.flush();
+                verify.record(System.nanoTime() - t);
+            }
+
+            File file = context.getDatabasePath(DATABASE_NAME);
+            File wal = new File(file.getPath() + "-wal");
+            return "rows=" + size +
+                    "\n  ingest: " + (size * 1000L / ingestMillis) + " rows/s in " + ingestMillis + "ms" +
+                    "\n  lookup: " + lookup +
+                    "\n  lookup during ingest of " + CONCURRENT_INGEST + ": " + concurrent +
+                    "\n  scan of " + SCAN_SIZE + ": " + scan +
+                    "\n  near: " + near +
+                    "\n  verify: " + verify +
+                    "\n  file: " + (file.length() / 1024) + "KiB wal: " + (wal.length() / 1024) + "KiB" +
+                    " (" + (file.length() / size) + " bytes/row)";
+        } finally {
+            database.close();
+        }
+    }
+
+    /**
+     * Deterministic synthetic access point dataset. 60% of the access points are in urban cores,
+     * 30% in suburbs and 10% along highways. Access points are generated in small groups around
+     * a common spot, so neighbouring indices are neighbours in space.
+     */
+    private static class SyntheticCity {
+        private static final double CENTER_LATITUDE = 52.52;
+        private static final double CENTER_LONGITUDE = 13.40;
+        private static final int CORES = 5;
+        private static final int GROUP_SIZE = 40;
+        private static final double METERS_PER_DEGREE = 111000;
+
+        private final long seed;
+        private final double[] coreLatitudes = new double[CORES];
+        private final double[] coreLongitudes = new double[CORES];
+
+        private SyntheticCity(int size) {
+            this.seed = size * 31L + 7;
+            Random random = new Random(seed);
+            for (int i = 0; i < CORES; i++) {
+                coreLatitudes[i] = CENTER_LATITUDE + random.nextGaussian() * 0.1;
+                coreLongitudes[i] = CENTER_LONGITUDE + random.nextGaussian() * 0.15;
+            }
+        }
+
+        private String getMac(int index) {
+            // Multiply with an odd constant to spread the addresses over the whole 48 bit range
+            return WifiLocationCache.longToMac((index * 0x9E3779B97F4A7C15L + seed) & 0xffffffffffffL);
+        }
+
+        private Location get(int index) {
+            int group = index / GROUP_SIZE;
+            Random groupRandom = new Random(seed ^ group);
+            double latitude, longitude, spread;
+            double kind = groupRandom.nextDouble();
+            int core = groupRandom.nextInt(CORES);
+            if (kind < 0.6) {
+                latitude = coreLatitudes[core] + groupRandom.nextGaussian() * 0.01;
+                longitude = coreLongitudes[core] + groupRandom.nextGaussian() * 0.015;
+                spread = 30;
+            } else if (kind < 0.9) {
+                latitude = coreLatitudes[core] + groupRandom.nextGaussian() * 0.05;
+                longitude = coreLongitudes[core] + groupRandom.nextGaussian() * 0.075;
+                spread = 80;
+            } else {
+                int other = (core + 1) % CORES;
+                double position = groupRandom.nextDouble();
+                latitude = coreLatitudes[core] + (coreLatitudes[other] - coreLatitudes[core]) * position;
+                longitude = coreLongitudes[core] + (coreLongitudes[other] - coreLongitudes[core]) * position;
+                spread = 150;
+            }
+            Random random = new Random(seed ^ (index * 0x5DEECE66DL));
+            latitude += random.nextGaussian() * spread / METERS_PER_DEGREE;
+            longitude += random.nextGaussian() * spread / METERS_PER_DEGREE;
+            Bundle extras = new Bundle();
+            extras.putString(LocationRetriever.EXTRA_MAC_ADDRESS, getMac(index));
+            Location location = LocationHelper.create("benchmark", latitude, longitude,
+                    (float) (20 + random.nextInt(100)), extras);
+            location.setTime(System.currentTimeMillis());
+            return location;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2013-2018 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.backend.apple;
+
+import android.location.Location;
+import android.os.Bundle;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.microg.nlp.api.LocationHelper;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the single pass {@link VerifyingWifiLocationCalculator#combine(Set)} against
+ * {@link LocationHelper#weightedAverage} with the same weights.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class VerifyingWifiLocationCalculatorTest {
+    private static final double DEGREE_DELTA = 1E-9;
+    private static final float ACCURACY_DELTA = 0.01F;
+
+    private static Location create(String mac, double latitude, double longitude, float accuracy,
+                                   int signal) {
+        Bundle extras = new Bundle();
+        extras.putString(LocationRetriever.EXTRA_MAC_ADDRESS, mac);
+        extras.putInt(LocationRetriever.EXTRA_SIGNAL_LEVEL, signal);
+        return LocationHelper.create("test", latitude, longitude, accuracy, extras);
+    }
+
+    private static Location weightedAverage(Set<Location> locations) {
+        float minSignal = Integer.MAX_VALUE, maxSignal = Integer.MIN_VALUE;
+        for (Location location : locations) {
+            minSignal = Math.min(minSignal, VerifyingWifiLocationCalculator.getSignalLevel(location));
+            maxSignal = Math.max(maxSignal, VerifyingWifiLocationCalculator.getSignalLevel(location));
+        }
+        final float finalMinSignal = minSignal;
+        final float finalMaxSignal = maxSignal;
+        return LocationHelper.weightedAverage("test", locations, new LocationHelper.LocationBalance() {
+            @Override
+            public double getWeight(Location location) {
+                return VerifyingWifiLocationCalculator.calculateWeight(
+                        VerifyingWifiLocationCalculator.getSignalLevel(location),
+                        location.getAccuracy(), finalMinSignal, finalMaxSignal);
+            }
+        }, new Bundle());
+    }
+
+    private static void assertSame(Set<Location> locations) {
+        Location expected = weightedAverage(locations);
+        Location actual = new VerifyingWifiLocationCalculator("test", null).combine(locations);
+        assertEquals(expected.getLatitude(), actual.getLatitude(), DEGREE_DELTA);
+        assertEquals(expected.getLongitude(), actual.getLongitude(), DEGREE_DELTA);
+        assertEquals(expected.getAccuracy(), actual.getAccuracy(), ACCURACY_DELTA);
+        assertEquals(expected.hasAltitude(), actual.hasAltitude());
+        if (expected.hasAltitude()) {
+            assertEquals(expected.getAltitude(), actual.getAltitude(), 1E-6);
+        }
+        assertEquals(locations.size(), actual.getExtras().getInt("AVERAGED_OF"));
+        assertEquals(locations.size(), actual.getExtras().getInt("COMBINED_OF"));
+    }
+
+    @Test
+    public void combineMatchesWeightedAverage() {
+        Set<Location> locations = new LinkedHashSet<>();
+        locations.add(create("00:11:22:33:44:01", 52.5200, 13.4050, 30, -45));
+        locations.add(create("00:11:22:33:44:02", 52.5207, 13.4061, 80, -70));
+        locations.add(create("00:11:22:33:44:03", 52.5195, 13.4042, 50, -88));
+        locations.add(create("00:11:22:33:44:04", 52.5211, 13.4038, 120, -60));
+        locations.add(create("00:11:22:33:44:05", 52.5189, 13.4057, 25, -52));
+        assertSame(locations);
+    }
+
+    @Test
+    public void combineMatchesWeightedAverageWithAltitude() {
+        Set<Location> locations = new LinkedHashSet<>();
+        Location high = create("00:11:22:33:44:01", -33.8688, 151.2093, 40, -50);
+        high.setAltitude(58);
+        Location low = create("00:11:22:33:44:02", -33.8694, 151.2101, 65, -75);
+        low.setAltitude(12);
+        locations.add(high);
+        locations.add(low);
+        locations.add(create("00:11:22:33:44:03", -33.8680, 151.2088, 90, -81));
+        assertSame(locations);
+    }
+
+    @Test
+    public void combineMatchesWeightedAverageForLargeClasses() {
+        // More locations than the initial buffers hold, so they grow on the way
+        Set<Location> locations = new LinkedHashSet<>();
+        for (int i = 0; i < 40; i++) {
+            locations.add(create(String.format("00:11:22:33:45:%02x", i), 48.8566 + (i % 7) * 1E-4,
+                    2.3522 - (i % 5) * 1E-4, 20 + (i * 13) % 150, -40 - (i * 7) % 55));
+        }
+        assertSame(locations);
+    }
+
+    @Test
+    public void combineIsStableAcrossCalls() {
+        VerifyingWifiLocationCalculator calculator = new VerifyingWifiLocationCalculator("test", null);
+        Set<Location> small = new LinkedHashSet<>();
+        small.add(create("00:11:22:33:44:01", 10.0, 20.0, 30, -45));
+        small.add(create("00:11:22:33:44:02", 10.001, 20.001, 60, -65));
+        Location first = calculator.combine(small);
+        Set<Location> large = new LinkedHashSet<>();
+        for (int i = 0; i < 20; i++) {
+            large.add(create(String.format("00:11:22:33:46:%02x", i), 11.0 + i * 1E-4, 21.0, 40, -50 - i));
+        }
+        calculator.combine(large);
+        // Leftovers of the larger call in the reused buffers must not leak into the smaller one
+        Location second = calculator.combine(small);
+        assertEquals(first.getLatitude(), second.getLatitude(), 0);
+        assertEquals(first.getLongitude(), second.getLongitude(), 0);
+        assertEquals(first.getAccuracy(), second.getAccuracy(), 0);
+    }
+
+    @Test
+    public void weightPrefersStrongAndAccurate() {
+        double strong = VerifyingWifiLocationCalculator.calculateWeight(150, 30, 100, 150);
+        double weak = VerifyingWifiLocationCalculator.calculateWeight(100, 30, 100, 150);
+        double inaccurate = VerifyingWifiLocationCalculator.calculateWeight(150, 200, 100, 150);
+        assertTrue(strong > weak);
+        assertTrue(strong > inaccurate);
+        assertFalse(Double.isNaN(weak));
+    }
+}
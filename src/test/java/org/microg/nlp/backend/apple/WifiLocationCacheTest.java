@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2013-2018 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.backend.apple;
+
+import android.location.Location;
+import android.os.Bundle;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.microg.nlp.api.LocationHelper;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class WifiLocationCacheTest {
+    private static Location create(int i) {
+        Bundle extras = new Bundle();
+        extras.putString(LocationRetriever.EXTRA_MAC_ADDRESS,
+                WifiLocationCache.longToMac(0x020000000000L | i));
+        return LocationHelper.create("apple", 50.0 + i * 1E-4, 8.0, 30, extras);
+    }
+
+    private static String mac(int i) {
+        return WifiLocationCache.longToMac(0x020000000000L | i);
+    }
+
+    @Test
+    public void prefetchDoesNotPushOutHotSet() {
+        WifiLocationCache cache = new WifiLocationCache(100);
+        for (int i = 0; i < 100; i++) {
+            cache.put(create(i));
+        }
+        int added = 0;
+        for (int i = 1000; i < 1100; i++) {
+            if (cache.putPrefetched(create(i))) added++;
+        }
+        assertEquals(25, added);
+        assertEquals(25, cache.getPrefetchedCount());
+        assertEquals(100, cache.size());
+        // Only the least recently used quarter made room
+        assertNotNull(cache.get(mac(99)));
+        assertNotNull(cache.get(mac(25)));
+    }
+
+    @Test
+    public void usedPrefetchedLocationsLeaveTheShare() {
+        WifiLocationCache cache = new WifiLocationCache(8);
+        assertTrue(cache.putPrefetched(create(1)));
+        assertTrue(cache.putPrefetched(create(2)));
+        assertFalse(cache.putPrefetched(create(3)));
+        assertNotNull(cache.get(mac(1)));
+        assertEquals(1, cache.getPrefetchedCount());
+        // Used, so no longer removable
+        assertFalse(cache.removePrefetched(mac(1)));
+        assertTrue(cache.putPrefetched(create(3)));
+        assertTrue(cache.removePrefetched(mac(2)));
+        cache.remove(mac(3));
+        assertEquals(0, cache.getPrefetchedCount());
+    }
+
+    @Test
+    public void evictedPrefetchedLocationsLeaveTheShare() {
+        WifiLocationCache cache = new WifiLocationCache(8);
+        assertTrue(cache.putPrefetched(create(1)));
+        assertTrue(cache.putPrefetched(create(2)));
+        for (int i = 10; i < 20; i++) {
+            cache.put(create(i));
+        }
+        assertEquals(0, cache.getPrefetchedCount());
+        assertTrue(cache.putPrefetched(create(1)));
+    }
+}
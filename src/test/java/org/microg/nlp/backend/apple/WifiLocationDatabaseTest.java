@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2013-2018 microG Project Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.microg.nlp.backend.apple;
+
+import android.content.Context;
+import android.location.Location;
+import android.os.Bundle;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.microg.nlp.api.LocationHelper;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the steps of {@link WifiLocationDatabase#getStored(String)} interleaved with an ingest:
+ * the lookup starts before the ingest commits and finds nothing on its snapshot, but only marks
+ * the MAC address as missing after the commit.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class WifiLocationDatabaseTest {
+    private static final String DATABASE_NAME = "test.db";
+    private static final String MAC = "02:00:00:00:00:01";
+
+    private Context context;
+    private WifiLocationDatabase database;
+    private WifiLocationCache cache;
+
+    @Before
+    public void open() {
+        context = RuntimeEnvironment.application;
+        database = new WifiLocationDatabase(context, DATABASE_NAME);
+        cache = database.getCache();
+    }
+
+    @After
+    public void close() {
+        database.close();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    private static Location create(double latitude, double longitude) {
+        Bundle extras = new Bundle();
+        extras.putString(LocationRetriever.EXTRA_MAC_ADDRESS, MAC);
+        return LocationHelper.create("apple", latitude, longitude, 30, extras);
+    }
+
+    @Test
+    public void lookupMissesUntilIngested() {
+        assertNull(database.getStored(MAC));
+        assertTrue(cache.isMissing(MAC));
+        database.ingest(Collections.singletonList(create(50.0, 8.0)));
+        assertFalse(cache.isMissing(MAC));
+        Location stored = database.getStored(MAC);
+        assertNotNull(stored);
+        assertEquals(50.0, stored.getLatitude(), 1E-9);
+    }
+
+    @Test
+    public void lookupOnOldSnapshotDoesNotMarkInsertedRow() {
+        // The lookup queries before the ingest commits...
+        long epoch = cache.getMissingEpoch();
+        database.ingest(Collections.singletonList(create(50.0, 8.0)));
+        // ...and marks its miss after it
+        cache.markMissing(MAC, epoch);
+        assertFalse(cache.isMissing(MAC));
+        assertNotNull(database.getStored(MAC));
+    }
+
+    @Test
+    public void lookupOnOldSnapshotDoesNotMarkTouchedRow() {
+        database.ingest(Collections.singletonList(create(50.0, 8.0)));
+        long epoch = cache.getMissingEpoch();
+        // Unchanged, so the row is only touched
+        database.ingest(Collections.singletonList(create(50.0, 8.0)));
+        cache.markMissing(MAC, epoch);
+        assertFalse(cache.isMissing(MAC));
+        assertNotNull(database.getStored(MAC));
+    }
+
+    @Test
+    public void staleMarkIsClearedByNextIngest() {
+        database.ingest(Collections.singletonList(create(50.0, 8.0)));
+        // Marked after the lookup missed a row that was not committed yet
+        cache.markMissing(MAC, cache.getMissingEpoch());
+        assertNull(database.getStored(MAC));
+        database.ingest(Collections.singletonList(create(50.0, 8.0)));
+        assertNotNull(database.getStored(MAC));
+    }
+}